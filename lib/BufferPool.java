@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <pre>
+ * A pool of byte arrays in power of two size classes, from MIN_SIZE to MAX_SIZE bytes.
+ * Arrays are borrowed as reference counted Buffers with acquire, and go back to the pool when the last
+ * reference to them is released. A buffer may be shared, e.g. by a packet in flight and the queue of
+ * segments waiting to be retransmitted, so each holder takes a reference with retain and gives it up with release.
+ *
+ * Buffers may be released from any thread, e.g. by the node that receives a packet in a parallel simulation.
+ * A buffer whose references are never all released, e.g. that of a lost packet, is simply garbage collected.
+ * The free buffers are not saved in simulation checkpoints
+ * </pre>
+ */
+public class BufferPool implements Serializable {
+
+    public static final int MIN_SIZE = 64;       // bytes
+    public static final int MAX_SIZE = 1 << 16;  // bytes. Larger buffers are not pooled
+    private static final int MIN_SHIFT = 6;      // log2 of MIN_SIZE
+    private static final int NUM_CLASSES = 11;   // MIN_SIZE, 2 * MIN_SIZE, ... MAX_SIZE
+    private static final int MAX_FREE = 32;      // free buffers kept per size class
+
+    private transient Buffer[][] free;  // free buffers of each size class, created when first needed
+    private transient int[] numFree;
+
+    /**
+     * <pre>
+     * A byte array borrowed from a BufferPool, or wrapping an array that is not pooled
+     * </pre>
+     */
+    public static class Buffer implements Serializable {
+	private BufferPool pool;  // null if the array is not pooled
+	private byte[] array;
+	private AtomicInteger refs;
+
+	private Buffer(BufferPool pool, byte[] array) {
+	    this.pool = pool;
+	    this.array = array;
+	    this.refs = new AtomicInteger(1);
+	}
+
+	/**
+	 * @return The array of the buffer. It may be longer than what was asked for. Must not be used
+	 *         after the reference to the buffer has been released
+	 */
+	public byte[] array() {
+	    return this.array;
+	}
+
+	/**
+	 * Takes another reference to the buffer
+	 * @return This buffer
+	 */
+	public Buffer retain() {
+	    this.refs.incrementAndGet();
+	    return this;
+	}
+
+	/**
+	 * Gives up a reference to the buffer. The buffer goes back to its pool when its last reference is released
+	 */
+	public void release() {
+	    if(this.refs.decrementAndGet() == 0 && this.pool != null) {
+		this.pool.free(this);
+	    }
+	}
+    }
+
+    /**
+     * Creates an empty pool
+     */
+    public BufferPool() {
+	this.init();
+    }
+
+    /**
+     * Borrows a buffer of at least size bytes, with one reference to it
+     * @param size The number of bytes needed
+     * @return The buffer. Its contents are undefined
+     */
+    public Buffer acquire(int size) {
+	if(size > MAX_SIZE) {
+	    return new Buffer(null, new byte[size]);
+	}
+	int sizeClass = BufferPool.sizeClass(size);
+	synchronized(this) {
+	    if(this.numFree[sizeClass] > 0) {
+		Buffer buffer = this.free[sizeClass][--this.numFree[sizeClass]];
+		this.free[sizeClass][this.numFree[sizeClass]] = null;
+		buffer.refs.set(1);
+		return buffer;
+	    }
+	}
+	return new Buffer(this, new byte[MIN_SIZE << sizeClass]);
+    }
+
+    /**
+     * Wraps an array that is not pooled, so that it can be used where a buffer is expected
+     * @param array The array
+     * @return A buffer holding array, with one reference to it
+     */
+    public static Buffer wrap(byte[] array) {
+	return new Buffer(null, array);
+    }
+
+    //********** Private Functions **********
+
+    private synchronized void free(Buffer buffer) {
+	int sizeClass = BufferPool.sizeClass(buffer.array.length);
+	if(this.numFree[sizeClass] == MAX_FREE) {
+	    return;  // enough buffers of this size are free already
+	}
+	if(this.free[sizeClass] == null) {
+	    this.free[sizeClass] = new Buffer[MAX_FREE];
+	}
+	this.free[sizeClass][this.numFree[sizeClass]++] = buffer;
+    }
+
+    private void init() {
+	this.free = new Buffer[NUM_CLASSES][];
+	this.numFree = new int[NUM_CLASSES];
+    }
+
+    // Index of the smallest size class that holds size bytes
+    private static int sizeClass(int size) {
+	if(size <= MIN_SIZE) {
+	    return 0;
+	}
+	return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	this.init();
+    }
+}
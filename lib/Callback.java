@@ -1,8 +1,17 @@
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * <pre>   
+ * <pre>
  * Generic class to facilate use of callbacks
  * Also provides a static helper function to get an object of Method that can be passed to the constructor of this class
  * Example:
@@ -13,10 +22,26 @@ import java.lang.reflect.InvocationTargetException;
  *
  * The above code snippet assumes that it is written inside class Test, hence the use of this.
  * The method must have public visibility.
- * </pre>   
+ *
+ * Manager and FishThread also accept any Runnable, such as a lambda or method reference, which avoids
+ * the method lookup altogether:
+ *         manager.addTimer(addr, 1000, () -> foo("fooTest"));
+ *
+ * Method lookups and the method handles used to invoke them are cached, so repeated callbacks to the
+ * same method do not pay for reflection again.
+ *
+ * A Callback is Serializable if its object and params are. The method is saved by name.
+ * </pre>
  */
-public class Callback {
-    private Method method;
+public class Callback implements Task {
+    private static final Object[] NO_PARAMS = new Object[0];
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private static final ConcurrentHashMap methodCache = new ConcurrentHashMap();   // lookup key -> Method
+    private static final ConcurrentHashMap invokerCache = new ConcurrentHashMap();  // Method -> MethodHandle
+
+    private transient Method method;
+    private transient MethodHandle invoker;
     private Object obj;
     private Object[] params;
 
@@ -24,13 +49,14 @@ public class Callback {
      * Initializes member variables
      * @param method The method to be invoked
      * @param obj The object on which the method is to be invoked
-     * @param params An array of objects to be passed to the method as parameters when it is invoked. 
+     * @param params An array of objects to be passed to the method as parameters when it is invoked.
      *               Can be null if no parameters are to be passed
      */
     public Callback(Method method, Object obj, Object[] params) {
 	this.method = method;
+	this.invoker = Callback.getInvoker(method);
 	this.obj = obj;
-	this.params = params;
+	this.setParams(params);
     }
 
     /**
@@ -38,16 +64,35 @@ public class Callback {
      * @param params The params to be passed to the method when it is invoked
      */
     public void setParams(Object[] params) {
-	this.params = params;
+	this.params = (params == null) ? NO_PARAMS : params;
     }
 
     /**
      * Invokes the callback
-     * @throws IllegalAccessException Thrown by invoke method in class Method 
+     * @throws IllegalAccessException Thrown by invoke method in class Method
      * @throws InvocationTargetException Thrown by invoke method in class Method, if the underlying method throws an exception
      */
     public void invoke() throws IllegalAccessException, InvocationTargetException {
-	this.method.invoke(this.obj, this.params);
+	try {
+	    Object result = this.invoker.invokeExact(this.obj, this.params);
+	}catch(Error e) {
+	    throw e;
+	}catch(Throwable e) {
+	    throw new InvocationTargetException(e);
+	}
+    }
+
+    /**
+     * Invokes the callback. Any exception thrown by the underlying method is rethrown wrapped in a RuntimeException
+     */
+    public void run() {
+	try {
+	    this.invoke();
+	}catch(InvocationTargetException e) {
+	    throw new RuntimeException(e.getCause());
+	}catch(IllegalAccessException e) {
+	    throw new RuntimeException(e);
+	}
     }
 
     /**
@@ -60,11 +105,47 @@ public class Callback {
      * @throws NoSuchMethodException Thrown by Class.getMethod if a matching method is not found
      * @throws SecurityException Thrown by Class.getMethod if access to the information is denied
      */
-    public static Method getMethod(String methodName, Object obj, String[] parameterTypes) throws ClassNotFoundException, 
-												  NoSuchMethodException, 
-												  SecurityException 
+    public static Method getMethod(String methodName, Object obj, String[] parameterTypes) throws ClassNotFoundException,
+												  NoSuchMethodException,
+												  SecurityException
     {
-	return obj.getClass().getMethod(methodName, Callback.getParameterTypes(parameterTypes));
+	StringBuilder key = new StringBuilder(obj.getClass().getName()).append('#').append(methodName);
+	if(parameterTypes != null) {
+	    for(int i = 0; i < parameterTypes.length; i++) {
+		key.append(',').append(parameterTypes[i]);
+	    }
+	}
+	String cacheKey = key.toString();
+	Method method = (Method)methodCache.get(cacheKey);
+	if(method == null) {
+	    method = obj.getClass().getMethod(methodName, Callback.getParameterTypes(parameterTypes));
+	    methodCache.put(cacheKey, method);
+	}
+	return method;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+	out.defaultWriteObject();
+	out.writeObject(this.method.getDeclaringClass().getName());
+	out.writeObject(this.method.getName());
+	Class[] types = this.method.getParameterTypes();
+	String[] typeNames = new String[types.length];
+	for(int i = 0; i < types.length; i++) {
+	    typeNames[i] = types[i].getName();
+	}
+	out.writeObject(typeNames);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+	in.defaultReadObject();
+	Class declaringClass = Class.forName((String)in.readObject());
+	String methodName = (String)in.readObject();
+	try {
+	    this.method = declaringClass.getMethod(methodName, Callback.getParameterTypes((String[])in.readObject()));
+	}catch(NoSuchMethodException e) {
+	    throw new InvalidObjectException("Callback method no longer exists: " + methodName);
+	}
+	this.invoker = Callback.getInvoker(this.method);
     }
 
     private static Class[] getParameterTypes(String[] parameterTypes) throws ClassNotFoundException {
@@ -78,4 +159,24 @@ public class Callback {
 	}
 	return paramTypes;
     }
+
+    // Returns a handle of type (Object, Object[])Object that invokes method on its first argument,
+    // spreading the array over the method's parameters
+    private static MethodHandle getInvoker(Method method) {
+	MethodHandle invoker = (MethodHandle)invokerCache.get(method);
+	if(invoker == null) {
+	    try {
+		invoker = MethodHandles.publicLookup().unreflect(method);
+		if(Modifier.isStatic(method.getModifiers())) {
+		    // Static methods ignore the object they are invoked on
+		    invoker = MethodHandles.dropArguments(invoker, 0, Object.class);
+		}
+		invoker = invoker.asSpreader(Object[].class, method.getParameterTypes().length).asType(INVOKER_TYPE);
+	    }catch(IllegalAccessException e) {
+		throw new IllegalArgumentException("Method must have public visibility: " + method);
+	    }
+	    invokerCache.put(method, invoker);
+	}
+	return invoker;
+    }
 }
@@ -19,20 +19,26 @@ import java.io.IOException;
  * The topology file and the keyboard input file have the same format;
  * all the same commands can be entered from either one.  Both
  * are line-oriented (one command per line).
- * Nodes (e.g., a, b) are referred to by their FishnetAddress (0..254).
+ * Nodes (e.g., a, b) are referred to by their FishnetAddress (0..254, or 0..65534 in a simulation
+ * of more than 254 nodes).
  *
  *	[// | #] <comment>  -- any line starting with // or # is ignored
- *	edge a b [lossRate <double>] [delay <long>] [bw <int>] [bt <long>]
+ *	edge a b [lossRate <double>] [delay <long>] [bw <int>] [bt <long>] [mtu <int>]
  *		-- this creates an edge between a and b, with the
- *		specified loss rate, delay (in milliseconds), bw (in B/s), and buffering time (in milliseconds)
- *		or changes the specifics for an existing link
- *		defaults: 0 lossRate, 1 msec delay, 10KB/s bw, and 250 msec buffering time
+ *		specified loss rate, delay (in milliseconds), bw (in B/s), buffering time (in milliseconds),
+ *		and MTU (in bytes, for simulation mode only) or changes the specifics for an existing link
+ *		defaults: 0 lossRate, 1 msec delay, 10KB/s bw, 250 msec buffering time, and 128 byte MTU
  *	time [+ ]x  -- any subsequent command is delayed until simulation/real
  *			has reached x (or now + x, if + is used), in milliseconds from start
  *                    NOTE: IF + IS USED THERE MUST BE A SPACE BETWEEN + AND x
+ *	seed x -- seeds the packet losses of all edges with the long x, so that runs with the same seed
+ *		lose the same packets. Without it the seed is random
  *	fail a [b] -- this removes node a (if b is not specified) or an edge (if it is)
  *	restart a [b]  -- this restarts a node or edge.  previous information about
  *		the node/edge is preserved
+ *	checkpoint file -- save the state of the simulation to file (for simulation mode only)
+ *	restore file  -- replace the state of the simulation with the one saved in file, including its clock.
+ *		Commands after restore are run relative to the restored clock (for simulation mode only)
  *	echo text -- print the text
  *	exit  -- cleanly stop the simulation/emulation run and print statistics
  *	a <msg>  -- deliver text <msg> to node a (for simulation mode only)
@@ -104,7 +110,7 @@ public abstract class CommandsParser {
 	String[] cmd = line.split(" ");
 
 	// Java short circuit evaluates boolean expressions
-	if(this.parseEdge(cmd) || this.parseFail(cmd) || this.parseRestart(cmd)) {
+	if(this.parseEdge(cmd) || this.parseSeed(cmd) || this.parseFail(cmd) || this.parseRestart(cmd)) {
 	    return -1;
 	}
 
@@ -205,6 +211,11 @@ public abstract class CommandsParser {
 
 		switch(cmd.length) {
 		// All options
+		case 13:
+		    if(cmd[11].equals("mtu")) {
+			options.setMTU(Integer.parseInt(cmd[12]));
+		    }
+
                 /*
                  * Mar. 12, 2006
                  * Hao Wang
@@ -250,6 +261,19 @@ public abstract class CommandsParser {
 	return false;
     }
 
+    private boolean parseSeed(String[] cmd) {
+	if(cmd[0].equals("seed")) {
+	    try {
+		Topology.GetInstance().setSeed(Long.parseLong(cmd[1]));
+	    }catch(Exception e) {
+		System.err.println("Error parsing seed command: ");
+		this.printStrArray(cmd, System.err);
+	    }
+	    return true;
+	}
+	return false;
+    }
+
     private boolean parseFail(String[] cmd) {
 	if(cmd[0].equals("fail")) {
 	    try {
@@ -0,0 +1,115 @@
+/**
+ * <pre>
+ * Event that delivers a packet to a simulated node.
+ * Delivery events are the bulk of all events in a simulation, so instead of wrapping the delivery in a Runnable
+ * they carry the destination, source and packet as fields, and are recycled through the DeliveryEvent.Pool
+ * that created them once they have been dispatched.
+ * </pre>
+ */
+public class DeliveryEvent extends Event {
+
+    private transient Pool pool;  // the pool that created the event, null once restored from a checkpoint
+    private Node destNode;
+    private Integer srcAddr;
+    private Packet pkt;
+    private transient DeliveryEvent nextFree;
+
+    private DeliveryEvent(Pool pool) {
+	super(0, -1, null);
+	this.pool = pool;
+    }
+
+    /**
+     * Delivers the packet and releases this event to the pool that created it, which may belong to
+     * another thread. The event must not be used after it has been invoked
+     */
+    public void invoke() {
+	Node destNode = this.destNode;
+	Integer srcAddr = this.srcAddr;
+	Packet pkt = this.pkt;
+	// Do not hold on to the packet while the event is in the pool
+	this.destNode = null;
+	this.srcAddr = null;
+	this.pkt = null;
+	try {
+	    destNode.onReceive(srcAddr, pkt);
+	}finally {
+	    if(this.pool != null) {
+		this.pool.release(this);
+	    }
+	}
+    }
+
+    /**
+     * <pre>
+     * Free list of DeliveryEvents. Each thread that sends packets has its own pool, and an event always
+     * goes back to the pool that created it, even when the packet crossed to a node of another thread.
+     * So the free list is synchronized, and keeps at most MAX_FREE events, as BufferPool does.
+     * </pre>
+     */
+    public static class Pool {
+
+	private static final int MAX_FREE = 256;  // free events kept
+
+	private DeliveryEvent free;
+	private int numFree;
+	private int allocated;  // events created by this pool
+
+	public Pool() {
+	    this.free = null;
+	    this.numFree = 0;
+	    this.allocated = 0;
+	}
+
+	/**
+	 * Returns a delivery event, reusing a released one if possible
+	 * @param timeToOccur The time at which the packet arrives, in microseconds
+	 * @param destAddr The address of the node that receives the packet
+	 * @param destNode The node that receives the packet
+	 * @param srcAddr The address of the node that sent the packet
+	 * @param pkt The packet, which is delivered as is, without serializing it
+	 * @return The event
+	 */
+	public DeliveryEvent obtain(long timeToOccur, int destAddr, Node destNode, Integer srcAddr, Packet pkt) {
+	    DeliveryEvent event;
+	    synchronized(this) {
+		event = this.free;
+		if(event == null) {
+		    event = new DeliveryEvent(this);
+		    this.allocated++;
+		}else {
+		    this.free = event.nextFree;
+		    this.numFree--;
+		    event.nextFree = null;
+		}
+	    }
+	    event.setTimeToOccur(timeToOccur);
+	    event.setNode(destAddr);
+	    event.destNode = destNode;
+	    event.srcAddr = srcAddr;
+	    event.pkt = pkt;
+	    return event;
+	}
+
+	/**
+	 * Returns an event to the pool. May be called from any thread
+	 * @param event The event, which must have been created by this pool and invoked
+	 */
+	public synchronized void release(DeliveryEvent event) {
+	    if(this.numFree == MAX_FREE) {
+		return;  // enough events are free already
+	    }
+	    event.nextFree = this.free;
+	    this.free = event;
+	    this.numFree++;
+	}
+
+	/**
+	 * @return The number of events this pool has had to create. Stays constant once the pool has warmed up,
+	 *         unless more than MAX_FREE of its events have been in flight at once
+	 */
+	public synchronized int getAllocated() {
+	    return this.allocated;
+	}
+    }
+}
@@ -1,29 +1,50 @@
+import java.io.Serializable;
+import java.util.SplittableRandom;
+
 /**
  * <pre>
  * Edge stores the specifics about each edge in the topology.
  * Edges can be temporarily disabled and they record when the next packet can be sent along the edge
+ * Each direction of an edge draws its packet losses from its own random stream, derived from the
+ * simulation seed and the addresses of its ends, so the losses on an edge do not depend on traffic elsewhere
  * </pre>
  */
-public class Edge {
+public class Edge implements Serializable {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
     private int a;
     private int b;
     private boolean live;
     private long[] nextPktSendTime;  // When can the next packet be put onto the wire (in microseconds)
+    private long[] lossState;  // SplitMix64 state of the loss stream of each direction, indexed like nextPktSendTime
     private EdgeOptions options;
 
     /**
-     * Create a live edge between nodes a and b
+     * Create a live edge between nodes a and b, with unseeded loss streams
      * @param a Int specifying a node
      * @param b Int specifying a node
      * @param options The edge options. That is, the delay, the loss rate and the bandwidth
      */
     public Edge(int a, int b, EdgeOptions options) {
+	this(a, b, options, new SplittableRandom().nextLong());
+    }
+
+    /**
+     * Create a live edge between nodes a and b
+     * @param a Int specifying a node
+     * @param b Int specifying a node
+     * @param options The edge options. That is, the delay, the loss rate and the bandwidth
+     * @param seed The simulation seed that the loss streams are derived from
+     */
+    public Edge(int a, int b, EdgeOptions options, long seed) {
 	this.a = a;
 	this.b = b;
 	this.live = true;
 	this.nextPktSendTime = new long[2];
 	this.insertSendTime(a, 0);
 	this.insertSendTime(b, 0);
+	this.lossState = new long[2];
+	this.setSeed(seed);
 	this.options = options;
     }
 
@@ -35,12 +56,12 @@ public class Edge {
      * @param size The size of the packet in bytes
      * @param now The current time in microseconds
      * @return The time (in microseconds) when the next packet will arrive at the destination. Returns -1 if the packet is dropped
-     * @throws IllegalArgumentException Thrown if size is greater than Packet.MAX_PACKET_SIZE
+     * @throws IllegalArgumentException Thrown if size is greater than the MTU of the edge
      */
     public long schedulePkt(int src, int size, long now) throws IllegalArgumentException {
-	if (size > Packet.MAX_PACKET_SIZE) {
-	    throw new IllegalArgumentException("Packet size must be less than Packet.MAX_PACKET_SIZE. Size = " +
-					       String.valueOf(size));
+	if (size > this.options.getMTU()) {
+	    throw new IllegalArgumentException("Packet size must be at most the MTU of the edge, " + this.options.getMTU() +
+					       ". Size = " + String.valueOf(size));
 	}
 
 	if (src != this.a && src != this.b) {
@@ -58,7 +79,7 @@ public class Edge {
          */
 	this.insertSendTime(src, result + size * 1000000 / this.options.getBW());
 
-	if(!this.live || Math.random() < this.options.getLossRate()) {
+	if(!this.live || this.isLost(src)) {
 	    return -1; // pkt was dropped
 	}
 
@@ -79,21 +100,22 @@ public class Edge {
      * @param src The src node that wants to send the packet
      * @param size The size of the packet in bytes
      * @param now The current time in microseconds
-     * @return The time (in microseconds) when the next packet will arrive at the destination. Returns -1 if the packet is dropped/lost
-     * @throws IllegalArgumentException Thrown if size is greater than Packet.MAX_PACKET_SIZE
+     * @return The time (in microseconds) when the next packet will arrive at the destination. Returns -1 if the packet is
+     *         dropped/lost, including if it is larger than the MTU of the edge
      */
     public long schedulePkt(Manager manager, int src, int size, long now) throws IllegalArgumentException {
-        if (size > Packet.MAX_PACKET_SIZE) {
-            throw new IllegalArgumentException("Packet size must be less than Packet.MAX_PACKET_SIZE. Size = " +
-                                               String.valueOf(size));
-        }
-
         if (src != this.a && src != this.b) {
             throw new IllegalArgumentException("Src specified is not part of this edge. This edge has a: " +
                                                String.valueOf(this.a) + " and b: " + String.valueOf(this.b) +
                                                ". Src specified is: " + String.valueOf(src));
         }
 
+        if (size > this.options.getMTU()) {
+            // too big for the edge, drop packet
+            manager.packetDropped();
+            return -1;
+        }
+
         long currentPktSendTime = Math.max(now, this.getSendTime(src));
         /*
          * Mar. 13, 2006
@@ -109,7 +131,7 @@ public class Edge {
         }
         this.insertSendTime(src, finishTime);
 
-        if(!this.live || Math.random() < this.options.getLossRate()) {
+        if(!this.live || this.isLost(src)) {
             // packet lost due to dead link or transmission error
             manager.packetLost();
             return -1;
@@ -143,6 +165,15 @@ public class Edge {
 	return this.b;
     }
 
+    /**
+     * Returns the other end of the edge
+     * @param node One end of the edge
+     * @return The address of the other end. node itself if the edge is a loop
+     */
+    public int getNeighbor(int node) {
+	return (node == this.a) ? this.b : this.a;
+    }
+
     /**
      * Sets the state of the edge, either live or not live
      * @param state The state of the edge. True means live
@@ -158,6 +189,15 @@ public class Edge {
 	return this.live;
     }
 
+    /**
+     * Restarts the loss streams of both directions from the given seed
+     * @param seed The simulation seed
+     */
+    public void setSeed(long seed) {
+	this.lossState[getIndex(this.a)] = streamSeed(seed, this.a, this.b);
+	this.lossState[getIndex(this.b)] = streamSeed(seed, this.b, this.a);
+    }
+
     /**
      * @return The options of the edge. That is, the loss rate, delay and bandwidth
      */
@@ -174,6 +214,31 @@ public class Edge {
     }
 
 
+    // Draws from the loss stream of the direction starting at src. Lossless edges do not draw
+    private boolean isLost(int src) {
+	double lossRate = this.options.getLossRate();
+	if(lossRate <= 0) {
+	    return false;
+	}
+	// Same draw as SplittableRandom.nextDouble, but with the state in a field so that it is saved in checkpoints
+	int index = getIndex(src);
+	long z = (this.lossState[index] += GOLDEN_GAMMA);
+	z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+	z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+	return ((z ^ (z >>> 31)) >>> 11) * 0x1.0p-53 < lossRate;
+    }
+
+    // Mixes the seed with a direction, so that every direction gets an unrelated stream
+    private static long streamSeed(long seed, int src, int dest) {
+	return mix64(seed + (((long)src << 32) | (dest & 0xffffffffL)) * GOLDEN_GAMMA);
+    }
+
+    private static long mix64(long z) {
+	z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+	z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+	return z ^ (z >>> 33);
+    }
+
     private void insertSendTime(int node, long time) {
 	this.nextPktSendTime[getIndex(node)] = time;
     }
@@ -1,9 +1,11 @@
+import java.io.Serializable;
+
 /**
  * <pre>
- * Class to represent the edge options: loss rate, delay and bandwidth
+ * Class to represent the edge options: loss rate, delay, bandwidth, buffering time and MTU
  * </pre>
  */
-public class EdgeOptions {
+public class EdgeOptions implements Serializable {
     double lossRate;
     long delay;
     int bw;
@@ -14,16 +16,19 @@ public class EdgeOptions {
      * buffering time (in milliseconds)
      */
     long bt;
+    int mtu;  // largest packet, in bytes
 
     /**
      * Initializes loss rate to 0. Lossless link by default.
      * Initializes delay to 1 millisecond and bandwidth to 10KB/s
+     * Initializes MTU to Packet.MAX_PACKET_SIZE
      */
     public EdgeOptions() {
 	lossRate = 0.0;
 	delay = 1;
 	bw = 10000;
         bt = 250;
+	mtu = Packet.MAX_PACKET_SIZE;
     }
 
     /**
@@ -96,4 +101,25 @@ public class EdgeOptions {
     public void setBT(long bt) {
         this.bt = bt;
     }
+
+    /**
+     * Returns the MTU
+     * @return The size of the largest packet the edge carries, in bytes
+     */
+    public int getMTU() {
+	return mtu;
+    }
+
+    /**
+     * Sets the MTU
+     * @param mtu The size of the largest packet the edge carries, in bytes.
+     *            Between Packet.MIN_MTU and Packet.MAX_MTU
+     * @throws IllegalArgumentException If mtu is out of range
+     */
+    public void setMTU(int mtu) throws IllegalArgumentException {
+	if(mtu < Packet.MIN_MTU || mtu > Packet.MAX_MTU) {
+	    throw new IllegalArgumentException("MTU must be between " + Packet.MIN_MTU + " and " + Packet.MAX_MTU + ". MTU = " + mtu);
+	}
+	this.mtu = mtu;
+    }
 }
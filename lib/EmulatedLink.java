@@ -11,6 +11,7 @@
 
 import java.net.DatagramPacket;
 import java.io.IOException;
+import java.util.SplittableRandom;
 
 /**
  * <p> A class for physical link emulation </p>
@@ -21,6 +22,8 @@ public class EmulatedLink {
     private EdgeOptions options;
     // When can the next packet be put onto the wire (in microseconds)
     private long nextPktSendTime;
+    // losses of this link, drawn without contending with other links
+    private SplittableRandom random;
 
     /**
      * Create an emulated physical link
@@ -29,6 +32,7 @@ public class EmulatedLink {
     public EmulatedLink(EdgeOptions options) {
         this.options = options;
         this.nextPktSendTime = 0;
+        this.random = new SplittableRandom();
     }
 
     /**
@@ -55,7 +59,8 @@ public class EmulatedLink {
         }
         this.nextPktSendTime = finishTime;
 
-        if(Math.random() < this.options.getLossRate()) {
+        double lossRate = this.options.getLossRate();
+        if(lossRate > 0 && this.random.nextDouble() < lossRate) {
             // packet lost due to transmission error
             manager.packetLost();
             return -1;
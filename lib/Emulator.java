@@ -108,7 +108,7 @@ public class Emulator extends Manager {
 
 		    this.sortedEvents.removeNextEvent();
 		    try {
-			nextEvent.callback().invoke();
+			nextEvent.invoke();
 		    }catch(Exception e) {
 			System.err.println("Exception while trying to invoke method in Emulator. Error: " + e);
 			e.printStackTrace();
@@ -169,18 +169,15 @@ public class Emulator extends Manager {
      * Send the pkt to the specified node
      * @param from The node that is sending the packet
      * @param to Int spefying the destination node
-     * @param pkt The packet to be sent, serialized to a byte array
+     * @param pkt The packet to be sent. It is serialized here, just before it goes out over UDP, and then released
      * @return True if the packet was sent, false otherwise
      * @throws IllegalArgumentException If the arguments are invalid
      */
-    public boolean sendPkt(int from, int to, byte[] pkt) throws IllegalArgumentException {
+    public boolean sendPkt(int from, int to, Packet pkt) throws IllegalArgumentException {
 	super.sendPkt(from, to, pkt);  // check arguments
 	this.refreshARP();
-	EmulatorPacket emulatorPacket = new EmulatorPacket(to, from, pkt);
-	byte[] payload = emulatorPacket.pack();
-	if(payload == null) {
-	    return false;
-	}
+	byte[] payload = EmulatorPacket.pack(to, from, pkt);
+	pkt.release();  // the packet has been copied out
 	DatagramPacket physicalPacket = new DatagramPacket(payload, payload.length);
 	try {
             /*
@@ -193,12 +190,12 @@ public class Emulator extends Manager {
                 /*
                  * this.broadcastPacket(physicalPacket);
                  */
-		this.broadcastPacket(physicalPacket, pkt.length);
+		this.broadcastPacket(physicalPacket, pkt.getPackedSize());
 	    }else if(this.arp.containsKey(new Integer(to))) {
                 /*
                  * this.physicalSend(physicalPacket, to);
                  */
-                this.schedulePkt(physicalPacket, to, pkt.length);
+                this.schedulePkt(physicalPacket, to, pkt.getPackedSize());
 	    }else {
 		System.err.println("Node " + to + " is not a neighbor of node " + from);
 		return false;
@@ -278,17 +275,15 @@ public class Emulator extends Manager {
                 timeToDeliver += 1000 - usecFraction;
             }
 
-            String[] paramTypes = {
-                "java.net.DatagramPacket",
-                "java.net.InetAddress",
-                "java.lang.Integer"
-            };
-            Object[] params = {
-                packet,
-                arpData.getIPAddress(),
-                Integer.valueOf(arpData.getPort())
-            };
-            this.addEvent(timeToDeliver, "physicalSend", this, paramTypes, params);
+            InetAddress address = arpData.getIPAddress();
+            int port = arpData.getPort();
+            this.addEvent(timeToDeliver, () -> {
+                try {
+                    this.physicalSend(packet, address, port);
+                } catch (IOException e) {
+                    System.err.println("IOException occured while trying to send to node: " + destAddr + ". Exception: " + e);
+                }
+            });
         }
     }
 
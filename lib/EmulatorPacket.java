@@ -81,6 +81,27 @@ public class EmulatorPacket {
 	
 	return byteStream.toByteArray();
     }
+
+    /**
+     * Serializes a fishnet packet straight into the format of pack, without an intermediate copy
+     * @param destAddr The fishnet address of the destination node
+     * @param srcAddr The fishnet address of the source node
+     * @param packet The fishnet packet to carry as the payload
+     * @return A byte[] for sending over UDP
+     * @throws IllegalArgumentException If the packet is too big
+     */
+    public static byte[] pack(int destAddr, int srcAddr, Packet packet) throws IllegalArgumentException {
+	int size = HEADER_SIZE + packet.getPackedSize();
+	if(size > MAX_PACKET_SIZE) {
+	    throw new IllegalArgumentException("Payload is too big");
+	}
+	byte[] buf = new byte[size];
+	buf[0] = (byte)destAddr;
+	buf[1] = (byte)srcAddr;
+	buf[2] = (byte)size;
+	packet.pack(buf, HEADER_SIZE);
+	return buf;
+    }
     
     /**
      * Unpacks a byte array to create a EmulatorPacket object
@@ -1,20 +1,34 @@
-import java.lang.reflect.InvocationTargetException;
+import java.io.Serializable;
 
 /**
  * An Event is some scheduled task to be performed.
+ * The task can be any Runnable, such as a lambda or a Callback.
+ * Events of nodes are saved in simulation checkpoints, so their tasks must then be Serializable.
  */
-public class Event {
+public class Event implements Serializable {
 
     private long timeToOccur;
-    private Callback cb;
+    private Runnable task;
+    private int node;    // address of the node the event is for, -1 if it is not for a particular node
+    private long order;  // set by SortedEventQueue to keep events at the same time in FIFO order
 
     /**
      * @param timeToOccur The time at which the event should take place.
-     * @param cb The callback to be invoked
+     * @param task The task to be run
      */
-    public Event(long timeToOccur, Callback cb) {
+    public Event(long timeToOccur, Runnable task) {
+	this(timeToOccur, -1, task);
+    }
+
+    /**
+     * @param timeToOccur The time at which the event should take place.
+     * @param node The address of the node that the event is for
+     * @param task The task to be run
+     */
+    public Event(long timeToOccur, int node, Runnable task) {
 	this.timeToOccur = timeToOccur;
-	this.cb = cb;
+	this.node = node;
+	this.task = task;
     }
 
     /**
@@ -27,10 +41,45 @@ public class Event {
     }
 
     /**
-     * Returns the callback
-     * @return The callback
+     * Returns the node that the event is for
+     * @return The address of the node, or -1 if the event is not for a particular node
+     */
+    public int node() {
+	return this.node;
+    }
+
+    /**
+     * Returns the task
+     * @return The task
+     */
+    public Runnable task() {
+	return this.task;
+    }
+
+    /**
+     * Runs the task of this event
+     */
+    public void invoke() {
+	this.task.run();
+    }
+
+    /**
+     * Returns the position of this event among the events at the same time
+     * @return The order
      */
-    public Callback callback() {
-	return this.cb;
+    long order() {
+	return this.order;
+    }
+
+    void setTimeToOccur(long timeToOccur) {
+	this.timeToOccur = timeToOccur;
+    }
+
+    void setNode(int node) {
+	this.node = node;
+    }
+
+    void setOrder(long order) {
+	this.order = order;
     }
 }
@@ -6,23 +6,28 @@ import java.net.SocketException;
 /**
  * <pre>   
  * Class with main method that starts up a Manager. Either an Emulator or a Simulator
- * Usage:  java Fishnet <simulate> <num nodes> <topo file> [fishnet file] [timescale]
+ * Usage:  java Fishnet <simulate> <num nodes> <topo file> [fishnet file] [timescale | headless [threads]]
  *         or
  *         java Fishnet <emulate> <trawler host name> <trawler port> <local port to use> [fishnet file]
  *         
  *         Arguments in <> are required and arguments in [] are optional. Fishnet file is a file with commands for a node
  *         Topofile is the topology file to use. It also have commands for a node.
+ *         headless runs the simulation as fast as possible without reading user input, and exits when
+ *         there is nothing left to simulate. If threads is given, the nodes are simulated in parallel on that many threads.
+ *         Up to 254 nodes are simulated with the original packet format, and up to 65534 with wide addresses and ports.
  * </pre>   
  */
 public class Fishnet {
     
     private static void usage() {
-	System.out.println("Usage:  java Fishnet <simulate> <num nodes> <topo file> [fishnet file] [timescale]\n" + 
+	System.out.println("Usage:  java Fishnet <simulate> <num nodes> <topo file> [fishnet file] [timescale | headless [threads]]\n" + 
 			   "or\n" + 
 			   "java Fishnet <emulate> <trawler host name> <trawler port> <local port to use> [fishnet file]\n\n" +          
 			   "Arguments in <> are required and arguments in [] are optional.\n" +  
 			   "Fishnet file is a file with commands for a node\n" + 
-			   "Topofile is the topology file to use. It also have commands for a node.");
+			   "Topofile is the topology file to use. It also have commands for a node.\n" +
+			   "headless runs the simulation as fast as possible without user input, until there is nothing left to simulate.\n" +
+			   "threads is the number of threads to simulate the nodes on in parallel, in headless mode.");
     }
 
     /**
@@ -42,8 +47,9 @@ public class Fishnet {
 	    if(args[0].equals("simulate")) {
 		int numNodes = Integer.parseInt(args[1]);
 		String topoFile = args[2];
+		Simulator simulator;
 		try {
-		    manager = new Simulator(numNodes, topoFile);
+		    simulator = new Simulator(numNodes, topoFile);
 		}catch(IllegalArgumentException e) {
 		    System.err.println("Illegal arguments given to Simulator. Exception: " + e);
 		    return;
@@ -52,10 +58,20 @@ public class Fishnet {
 		    return;
 		}
 
+		manager = simulator;
+
 		switch(args.length) {
+		case 6:
 		case 5: 
-		    double timescale = Double.parseDouble(args[4]);
-		    manager.setTimescale(timescale);
+		    if(args[4].equals("headless")) {
+			simulator.setHeadless(true);
+			if(args.length == 6) {
+			    simulator.setWorkers(Integer.parseInt(args[5]));
+			}
+		    }else {
+			double timescale = Double.parseDouble(args[4]);
+			manager.setTimescale(timescale);
+		    }
 		case 4:
 		    if(!noFile.equals(args[3])) {
 			manager.setFishnetFile(args[3]);
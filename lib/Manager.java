@@ -3,6 +3,7 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <pre>
@@ -11,7 +12,7 @@ import java.lang.reflect.Method;
  */
 public abstract class Manager {
 
-    private int pktsSent;
+    private AtomicInteger pktsSent;  // counters are atomic since a parallel simulation updates them from several threads
     private long start;
     protected SortedEventQueue sortedEvents;
     protected CommandsParser parser;   // parser for fishnet commands file
@@ -21,16 +22,16 @@ public abstract class Manager {
      * Hao Wang
      */
     // number of packets dropped due to buffer overflow
-    private int pktsDropped;
+    private AtomicInteger pktsDropped;
     // number of packets lost due to transmission error
-    private int pktsLost;
+    private AtomicInteger pktsLost;
 
     /**
      * Initialize Manager.
      * @param time Starting time in microseconds
      */
     protected Manager(long time) {
-	this.pktsSent = 0;
+	this.pktsSent = new AtomicInteger();
 	this.start = time / 1000;
 	this.sortedEvents = new SortedEventQueue();
 	this.parser = null;
@@ -39,8 +40,8 @@ public abstract class Manager {
          * Mar. 11, 2006
          * Hao Wang
          */
-        this.pktsDropped = 0;
-        this.pktsLost = 0;
+        this.pktsDropped = new AtomicInteger();
+        this.pktsLost = new AtomicInteger();
     }
 
     /**
@@ -85,17 +86,43 @@ public abstract class Manager {
      * @throws IllegalArgumentException If the arguments are invalid
      */
     public boolean sendPkt(int from, int to, byte[] pkt) throws IllegalArgumentException {
-	if ( (pkt.length > Packet.MAX_PACKET_SIZE) ||
-	     !Packet.validAddress(to)                  ||
+	Packet packet = (pkt.length > Packet.MAX_MTU) ? null : Packet.unpack(pkt);
+	if(packet == null) {
+	    throw new IllegalArgumentException("Either pkt is not valid, address is not valid, or TTL is not valid");
+	}
+	return this.sendPkt(from, to, packet);
+    }
+
+    /**
+     * Send the pkt to the specified node. The packet is validated here, once, and is only serialized
+     * if it has to go over the wire. It must not be modified after it has been sent
+     * @param from The node that is sending the packet
+     * @param to Int spefying the destination node
+     * @param pkt The packet to be sent
+     * @return True if the packet was sent, false otherwise
+     * @throws IllegalArgumentException If the arguments are invalid
+     */
+    public boolean sendPkt(int from, int to, Packet pkt) throws IllegalArgumentException {
+	if ( !Packet.validAddress(to)   ||
 	     !Packet.validAddress(from) ||
-		 !Packet.unpack(pkt).isValidToSend()) {
+	     !pkt.isValidToSend()) {
 
 	    throw new IllegalArgumentException("Either pkt is not valid, address is not valid, or TTL is not valid");
 	}
-	this.pktsSent++;
+	this.pktsSent.incrementAndGet();
 	return true;
     }
 
+    /**
+     * Returns the MTU of the link between two nodes. Packets larger than this are dropped
+     * @param from The node that sends packets over the link
+     * @param to The node at the other end of the link
+     * @return The size of the largest packet that can be sent from one node to the other, in bytes
+     */
+    public int getMTU(int from, int to) {
+	return Packet.MAX_PACKET_SIZE;
+    }
+
     /*
      * Mar. 12, 2006
      * Hao Wang
@@ -107,23 +134,42 @@ public abstract class Manager {
      * Called upon when a packet is dropped due to buffer overflow
      */
     protected void packetDropped() {
-        this.pktsDropped++;
+        this.pktsDropped.incrementAndGet();
     }
 
     /**
      * Called upon when a packet is lost due to transmission error
      */
     protected void packetLost() {
-        this.pktsLost++;
+        this.pktsLost.incrementAndGet();
+    }
+
+    /**
+     * Returns the packet statistics, so that they can be saved with the state of a simulation
+     * @return The number of packets sent, dropped and lost
+     */
+    protected int[] getPacketCounts() {
+	return new int[] {this.pktsSent.get(), this.pktsDropped.get(), this.pktsLost.get()};
+    }
+
+    /**
+     * Replaces the packet statistics, e.g. when the state of a simulation is restored
+     * @param counts The number of packets sent, dropped and lost
+     */
+    protected void setPacketCounts(int[] counts) {
+	this.pktsSent.set(counts[0]);
+	this.pktsDropped.set(counts[1]);
+	this.pktsLost.set(counts[2]);
     }
 
     /**
      * Adds a timer to be fired at time t
      * @param nodeAddr Addr of node that is registering this timer
      * @param t The time when the timer should fire. In milliseconds
-     * @param callback The callback to be invoked when the timer fires
+     * @param callback The callback to be invoked when the timer fires. Any Task, such as a Callback or a lambda
+     * @return A handle that can be used to cancel or reschedule the timer. Null if the timer was not added
      */
-    public void addTimerAt(int nodeAddr, long t, Callback callback) {
+    public TimerHandle addTimerAt(int nodeAddr, long t, Task callback) {
         /*
          * Mar. 27, 2006
          * Hao Wang
@@ -137,20 +183,23 @@ public abstract class Manager {
          * }
          */
         if (callback == null) {
-            return;
+            return null;
         }
 
-	this.sortedEvents.addEvent(new Event(t * 1000, callback));
+	TimerHandle timer = new TimerHandle(this, t * 1000, nodeAddr, callback);
+	this.queueTimer(timer);
+	return timer;
     }
 
     /**
      * Adds a timer to be fired at deltaT milliseconds in the future
      * @param nodeAddr Addr of node that is registering this timer
      * @param deltaT The time interval after which the timer should fire. In milliseconds
-     * @param callback The callback to be invoked when the timer fires
+     * @param callback The callback to be invoked when the timer fires. Any Task, such as a Callback or a lambda
+     * @return A handle that can be used to cancel or reschedule the timer. Null if the timer was not added
      */
-    public void addTimer(int nodeAddr, long deltaT, Callback callback) {
-	this.addTimerAt(nodeAddr, this.now() + deltaT, callback);
+    public TimerHandle addTimer(int nodeAddr, long deltaT, Task callback) {
+	return this.addTimerAt(nodeAddr, this.now() + deltaT, callback);
     }
 
     /**
@@ -208,14 +257,41 @@ public abstract class Manager {
 	return deferTill;
     }
 
+    /**
+     * Adds an event to be run at the given time
+     * @param timeToOccur The time at which the event should take place, in microseconds. Ignored if negative
+     * @param task The task to be run
+     */
+    protected void addEvent(long timeToOccur, Runnable task) {
+	if(timeToOccur < 0) {
+	    return;
+	}
+	this.queueEvent(new Event(timeToOccur, task));
+    }
+
+    /**
+     * Puts an event on the event queue. Simulator overrides this to pick the queue and order of the event
+     * @param event The event to queue
+     */
+    protected void queueEvent(Event event) {
+	this.sortedEvents.addEvent(event);
+    }
+
+    /**
+     * Puts a timer on the event queue. Also used when a timer is rescheduled
+     * @param timer The timer to queue. Must not already be pending
+     */
+    protected void queueTimer(TimerHandle timer) {
+	this.sortedEvents.addTimer(timer);
+    }
+
     protected void addEvent(long timeToOccur, String methodName, Object obj, String[] paramTypes, Object[] params) {
 	if(timeToOccur < 0) {
 	    return;
 	}
 	try {
 	    Method method = Callback.getMethod(methodName, obj, paramTypes);
-	    Callback cb = new Callback(method, obj, params);
-	    this.sortedEvents.addEvent(new Event(timeToOccur, cb));
+	    this.addEvent(timeToOccur, new Callback(method, obj, params));
 	}catch(Exception e) {
 	    System.err.println("Failed to add event in Manager. Method Name: " + methodName + " Object: " + obj +
 			       "\nException: " + e);
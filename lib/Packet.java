@@ -1,27 +1,59 @@
-import java.math.BigInteger;
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * <pre>   
  * Packet defines the Fishnet packet headers and some constants.
+ *
+ * A packet that carries a Transport packet can hold it in structured form. It is then only serialized
+ * if it is packed, e.g. to go out over UDP, or if its payload bytes are asked for. Likewise, the
+ * Transport packet of an unpacked Packet is only parsed when it is first asked for.
+ *
+ * Packet.view parses a packet without copying its payload, which then stays a view into the parsed
+ * bytes, as does the Transport packet parsed from it. Use getPayloadArray, getPayloadOffset and
+ * getPayloadLength to read such a payload in place, since getPayload has to copy it.
+ *
+ * Packets of up to MAX_PACKET_SIZE bytes use the original header. Larger packets, up to MAX_MTU bytes, are
+ * sent on edges with a larger MTU and use a wide header, marked by WIDE_VERSION in the top bits of the TTL byte.
+ *
+ * Addresses are 1 byte long unless wide addresses are selected with setWideAddresses, e.g. by a simulation
+ * with more nodes than fit in 1 byte. Then all packets have 2 byte addresses and all transport packets 2 byte ports.
+ * The broadcast address is the largest address, BROADCAST_ADDRESS or MAX_WIDE_ADDRESS
  * </pre>   
  */
-public class Packet {
+public class Packet implements Serializable {
 
     public static final int BROADCAST_ADDRESS = 255;
     public static final int MAX_ADDRESS = 255;
     public static final int HEADER_SIZE = 9;
-    public static final int MAX_PACKET_SIZE = 128;  // bytes
+    public static final int MAX_PACKET_SIZE = 128;  // bytes. Largest packet with the original header, and the default MTU
     public static final int MAX_PAYLOAD_SIZE = MAX_PACKET_SIZE - HEADER_SIZE;  // bytes
     public static final int MAX_TTL = 15;           // max hop count
 
+    public static final int WIDE_VERSION = 1;       // header version of packets larger than MAX_PACKET_SIZE
+    public static final int WIDE_HEADER_SIZE = 10;
+    public static final int MIN_MTU = 32;           // bytes
+    public static final int MAX_MTU = 0xffff;       // bytes. Largest packet with the wide header
+    public static final int MAX_WIDE_PAYLOAD_SIZE = MAX_MTU - WIDE_HEADER_SIZE;  // bytes
+
+    public static final int MAX_WIDE_ADDRESS = 0xffff;  // largest address, and broadcast address, with wide addresses
+
+    private static volatile int addressSize = 1;  // bytes per address in the header of every packet
+
     private int dest;
     private int src;
     private int ttl;
     private int protocol;
     private int seq;
-    private byte[] payload;
+    // The payload bytes, possibly a view into a larger array. Null if the payload is a structured transport packet
+    private byte[] payloadArray;
+    private int payloadOffset;
+    private int payloadLength;
+    // The payload as an array of its own, and as a transport packet. Filled in when first needed,
+    // possibly by several threads at once in a parallel simulation, which then produce equal values
+    private volatile byte[] payload;
+    private volatile Transport transport;
 
     /**
      * Constructing a new packet.
@@ -35,7 +67,7 @@ public class Packet {
      */
     public Packet(int dest, int src, int ttl, int protocol, int seq, byte[] payload) throws IllegalArgumentException {
 	
-	if(!this.isValid(dest, src, ttl, protocol, payload.length + Packet.HEADER_SIZE)) {
+	if(!this.isValid(dest, src, ttl, protocol, Packet.packedSize(payload.length))) {
 	    throw new IllegalArgumentException("Arguments passed to constructor of Packet are invalid");
 	}
 	
@@ -44,7 +76,57 @@ public class Packet {
 	this.ttl = ttl;
 	this.protocol = protocol;
 	this.seq = seq;
+	this.payloadArray = payload;
+	this.payloadOffset = 0;
+	this.payloadLength = payload.length;
 	this.payload = payload;
+	this.transport = null;
+    }
+
+    /**
+     * Constructing a new packet that carries a transport packet, with protocol Protocol.TRANSPORT_PKT.
+     * @param dest The destination fishnet address.
+     * @param src The source fishnet address.
+     * @param ttl The time-to-live value for this packet.
+     * @param seq The sequence number of the packet.
+     * @param transport The transport packet carried as the payload of the packet.
+     * @throws IllegalArgumentException If the given arguments are invalid
+     */
+    public Packet(int dest, int src, int ttl, int seq, Transport transport) throws IllegalArgumentException {
+
+	if(!this.isValid(dest, src, ttl, Protocol.TRANSPORT_PKT, Packet.packedSize(transport.getPackedSize()))) {
+	    throw new IllegalArgumentException("Arguments passed to constructor of Packet are invalid");
+	}
+
+	this.dest = dest;
+	this.src = src;
+	this.ttl = ttl;
+	this.protocol = Protocol.TRANSPORT_PKT;
+	this.seq = seq;
+	this.payloadArray = null;
+	this.payloadOffset = 0;
+	this.payloadLength = transport.getPackedSize();
+	this.payload = null;
+	this.transport = transport;
+    }
+
+    // Creates a packet whose payload is a view into buf
+    private Packet(int dest, int src, int ttl, int protocol, int seq, byte[] buf, int offset, int length) throws IllegalArgumentException {
+
+	if(!this.isValid(dest, src, ttl, protocol, Packet.packedSize(length))) {
+	    throw new IllegalArgumentException("Arguments passed to constructor of Packet are invalid");
+	}
+
+	this.dest = dest;
+	this.src = src;
+	this.ttl = ttl;
+	this.protocol = protocol;
+	this.seq = seq;
+	this.payloadArray = buf;
+	this.payloadOffset = offset;
+	this.payloadLength = length;
+	this.payload = (offset == 0 && length == buf.length) ? buf : null;
+	this.transport = null;
     }
 
     /**
@@ -53,7 +135,7 @@ public class Packet {
      */
     public String toString() {
 	return new String("Packet: " + this.src + "->" + this.dest + " protocol: " + this.protocol + " TTL: " + this.ttl + 
-			  " seq: " + this.seq + " contents: " + Utility.byteArrayToString(this.payload));
+			  " seq: " + this.seq + " contents: " + Utility.byteArrayToString(this.getPayload()));
     }
 
     /**
@@ -78,7 +160,8 @@ public class Packet {
     }
 
     /**
-     * Sets the TTL of this packet
+     * Sets the TTL of this packet.
+     * A packet that has been sent may be shared with its receivers, so set the TTL of a copy instead
      * @param ttl TTL to set
      */
     public void setTTL(int ttl) {
@@ -100,44 +183,201 @@ public class Packet {
     }
 
     /**
-     * @return The payload of this packet
+     * @return The payload of this packet. It is copied out of the parsed bytes the first time if the
+     *         payload is a view
      */
     public byte[] getPayload() {
-	return this.payload;
+	byte[] payload = this.payload;
+	if(payload == null) {
+	    if(this.payloadArray == null) {
+		payload = this.transport.pack();
+	    }else {
+		payload = Arrays.copyOfRange(this.payloadArray, this.payloadOffset, this.payloadOffset + this.payloadLength);
+	    }
+	    this.payload = payload;
+	}
+	return payload;
+    }
+
+    /**
+     * @return The array holding the payload of this packet, starting at getPayloadOffset(). It must not be modified
+     */
+    public byte[] getPayloadArray() {
+	return (this.payloadArray == null) ? this.getPayload() : this.payloadArray;
+    }
+
+    /**
+     * @return The index in getPayloadArray() of the first byte of the payload
+     */
+    public int getPayloadOffset() {
+	return (this.payloadArray == null) ? 0 : this.payloadOffset;
+    }
+
+    /**
+     * @return The size of the payload in bytes
+     */
+    public int getPayloadLength() {
+	return this.payloadLength;
+    }
+
+    /**
+     * @return The transport packet carried by this packet. Null if this is not a transport packet,
+     *         or if its payload is not a valid transport packet
+     */
+    public Transport getTransport() {
+	Transport transport = this.transport;
+	if(transport == null && this.protocol == Protocol.TRANSPORT_PKT) {
+	    transport = Transport.view(this.payloadArray, this.payloadOffset, this.payloadLength);
+	    this.transport = transport;
+	}
+	return transport;
+    }
+
+    /**
+     * Gives up the reference to the pooled payload buffer of the transport packet carried in structured form,
+     * if there is one. See Transport.release
+     */
+    public void release() {
+	Transport transport = this.transport;
+	if(this.payloadArray == null && transport != null) {
+	    transport.release();
+	}
+    }
+
+    /**
+     * @return The number of bytes this packet takes on the wire
+     */
+    public int getPackedSize() {
+	return Packet.packedSize(this.payloadLength);
+    }
+
+    /**
+     * Returns the number of bytes a packet takes on the wire
+     * @param payloadLength The size of the payload of the packet, in bytes
+     * @return The size of the packet, including the header it is sent with
+     */
+    public static int packedSize(int payloadLength) {
+	int size = Packet.headerSize(1) + payloadLength;
+	return (size <= MAX_PACKET_SIZE) ? size : size + 1;  // the wide header has a 2 byte length
+    }
+
+    /**
+     * Returns the largest payload that can be sent over an edge
+     * @param mtu The MTU of the edge, in bytes
+     * @return The size, in bytes, of the largest payload of a packet of at most mtu bytes
+     */
+    public static int maxPayloadSize(int mtu) {
+	if(mtu <= MAX_PACKET_SIZE) {
+	    return mtu - Packet.headerSize(1);
+	}
+	return Math.max(mtu - Packet.headerSize(2), MAX_PACKET_SIZE - Packet.headerSize(1));
+    }
+
+    /**
+     * Selects whether all packets have wide addresses, of 2 bytes instead of 1, and all transport packets
+     * wide ports. Must be selected before any packet is created, and not changed afterwards
+     * @param wide True to select wide addresses
+     */
+    public static void setWideAddresses(boolean wide) {
+	Packet.addressSize = wide ? 2 : 1;
+    }
+
+    /**
+     * @return True if packets have wide addresses
+     */
+    public static boolean hasWideAddresses() {
+	return Packet.addressSize == 2;
+    }
+
+    /**
+     * @return The largest address, MAX_ADDRESS or MAX_WIDE_ADDRESS
+     */
+    public static int maxAddress() {
+	return Packet.hasWideAddresses() ? MAX_WIDE_ADDRESS : MAX_ADDRESS;
+    }
+
+    /**
+     * @return The address that a packet is broadcast to, BROADCAST_ADDRESS or MAX_WIDE_ADDRESS
+     */
+    public static int broadcastAddress() {
+	return Packet.hasWideAddresses() ? MAX_WIDE_ADDRESS : BROADCAST_ADDRESS;
     }
 
     /**
      * Convert the Packet object into a byte array for sending over the wire.
      * Format:
-     *        destination address: 1 byte
-     *        source address: 1 byte
-     *        ttl (time to live): 1 byte
+     *        destination address: 1 byte, or 2 bytes most significant byte first with wide addresses
+     *        source address: 1 byte, or 2 bytes most significant byte first with wide addresses
+     *        version: 4 bits. 0 for packets of up to MAX_PACKET_SIZE bytes, else WIDE_VERSION
+     *        ttl (time to live): 4 bits
      *        protocol: 1 byte
-     *        packet length: 1 byte
-     *        packet sequence num: 4 bytes
-     *        payload: <= MAX_PAYLOAD_SIZE bytes
+     *        packet length: 1 byte, or 2 bytes most significant byte first if the version is WIDE_VERSION
+     *        packet sequence num: 4 bytes, most significant byte first
+     *        payload: <= MAX_WIDE_PAYLOAD_SIZE bytes
      * @return A byte[] for transporting over the wire. Null if failed to pack for some reason
      */
     public byte[] pack() {	
-	
-	ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-	byteStream.write(this.dest);
-	byteStream.write(this.src);
-	byteStream.write(this.ttl);
-	byteStream.write(this.protocol);
-	byteStream.write(this.payload.length + Packet.HEADER_SIZE);
+	byte[] packedPacket = new byte[this.getPackedSize()];
+	this.pack(packedPacket, 0);
+	return packedPacket;
+    }
 
-	byte[] seqByteArray = (BigInteger.valueOf(this.seq)).toByteArray();
-	int paddingLength = 4 - seqByteArray.length;
-	for(int i = 0; i < paddingLength; i++) {
-	    byteStream.write(0);
+    /**
+     * Write the packet into a caller supplied array, in the format used by pack()
+     * @param buf The array to write into. Must have getPackedSize() bytes free from offset
+     * @param offset The index at which to write the first byte of the packet
+     * @return The number of bytes written
+     */
+    public int pack(byte[] buf, int offset) {
+	int size = this.getPackedSize();
+	int addrSize = Packet.addressSize;
+	int ttlOffset = offset + 2 * addrSize;
+	Utility.putUnsigned(buf, offset, addrSize, this.dest);
+	Utility.putUnsigned(buf, offset + addrSize, addrSize, this.src);
+	buf[ttlOffset + 1] = (byte)this.protocol;
+	if(size <= MAX_PACKET_SIZE) {
+	    buf[ttlOffset] = (byte)this.ttl;
+	    buf[ttlOffset + 2] = (byte)size;
+	}else {
+	    buf[ttlOffset] = (byte)((WIDE_VERSION << 4) | this.ttl);
+	    buf[ttlOffset + 2] = (byte)(size >>> 8);
+	    buf[ttlOffset + 3] = (byte)size;
 	}
+	int payloadStart = offset + size - this.payloadLength;
+	Utility.putInt(buf, payloadStart - 4, this.seq);
+	if(this.payloadArray == null) {
+	    this.transport.pack(buf, payloadStart);
+	}else {
+	    System.arraycopy(this.payloadArray, this.payloadOffset, buf, payloadStart, this.payloadLength);
+	}
+	return size;
+    }
 
-	byteStream.write(seqByteArray, 0, Math.min(seqByteArray.length, 4));
-		
-	byteStream.write(this.payload, 0, this.payload.length);
-
-	return byteStream.toByteArray();
+    /**
+     * Write the packet at the position of a caller supplied buffer, in the format used by pack().
+     * The buffer's position is advanced past the packet
+     * @param buf The buffer to write into. Must have getPackedSize() bytes remaining
+     */
+    public void pack(ByteBuffer buf) {
+	int size = this.getPackedSize();
+	Utility.putUnsigned(buf, Packet.addressSize, this.dest);
+	Utility.putUnsigned(buf, Packet.addressSize, this.src);
+	if(size <= MAX_PACKET_SIZE) {
+	    buf.put((byte)this.ttl);
+	    buf.put((byte)this.protocol);
+	    buf.put((byte)size);
+	}else {
+	    buf.put((byte)((WIDE_VERSION << 4) | this.ttl));
+	    buf.put((byte)this.protocol);
+	    buf.put((byte)(size >>> 8));
+	    buf.put((byte)size);
+	}
+	Utility.putInt(buf, this.seq);
+	if(this.payloadArray == null) {
+	    this.transport.pack(buf);
+	}else {
+	    buf.put(this.payloadArray, this.payloadOffset, this.payloadLength);
+	}
     }
 
     /**
@@ -147,44 +387,102 @@ public class Packet {
      * @return Packet object created or null if the byte[] representation was corrupted
      */
     public static Packet unpack(byte[] packedPacket){
-	
-	ByteArrayInputStream byteStream = new ByteArrayInputStream(packedPacket);
-	
-	int dest = byteStream.read();
-	int src = byteStream.read();
-	int ttl = byteStream.read();
-	int protocol = byteStream.read();
-	int packetLength = byteStream.read();
-	
-	byte[] seqByteArray = new byte[4];
-	if(byteStream.read(seqByteArray, 0, 4) != 4) {
-	    return null;
-	}
+	return Packet.unpack(packedPacket, 0, packedPacket.length);
+    }
 
-	int seq = (new BigInteger(seqByteArray)).intValue();
+    /**
+     * Unpacks a packet held in part of a byte array
+     * @param buf The array holding the packet
+     * @param offset The index of the first byte of the packet
+     * @param length The number of bytes holding the packet
+     * @return Packet object created or null if the bytes were corrupted
+     */
+    public static Packet unpack(byte[] buf, int offset, int length) {
+	return Packet.parse(buf, offset, length, true);
+    }
 
-	byte[] payload = new byte[byteStream.available()];
-	byteStream.read(payload, 0, payload.length);
+    /**
+     * Parses a packet held in part of a byte array without copying its payload. The packet's payload,
+     * and the Transport packet parsed from it, are views into buf, so buf must not be modified while they are in use
+     * @param buf The array holding the packet
+     * @param offset The index of the first byte of the packet
+     * @param length The number of bytes holding the packet
+     * @return Packet object created or null if the bytes were corrupted
+     */
+    public static Packet view(byte[] buf, int offset, int length) {
+	return Packet.parse(buf, offset, length, false);
+    }
 
-	if((9 + payload.length) != packetLength) {
+    /**
+     * Unpacks the packet held in the remaining bytes of a buffer. On success the buffer's position is
+     * advanced to its limit
+     * @param buf The buffer holding the packet
+     * @return Packet object created or null if the bytes were corrupted
+     */
+    public static Packet unpack(ByteBuffer buf) {
+	int start = buf.position();
+	byte[] packedPacket = new byte[buf.remaining()];
+	buf.get(packedPacket);
+	Packet packet = Packet.view(packedPacket, 0, packedPacket.length);
+	if(packet == null) {
+	    buf.position(start);
+	}
+	return packet;
+    }
+
+    private static Packet parse(byte[] buf, int offset, int length, boolean copy) {
+	if(length < Packet.headerSize(1)) {
 	    return null;
-	}	
-	
+	}
+	int addrSize = Packet.addressSize;
+	int ttlOffset = offset + 2 * addrSize;
+	int version = (buf[ttlOffset] & 0xff) >>> 4;
+	int lengthSize;
+	if(version == 0) {
+	    lengthSize = 1;
+	}else if(version == WIDE_VERSION) {
+	    lengthSize = 2;
+	}else {
+	    return null;
+	}
+	int headerSize = Packet.headerSize(lengthSize);
+	if(length < headerSize) {
+	    return null;
+	}
+	int packetLength = Utility.getUnsigned(buf, ttlOffset + 2, lengthSize);
+	// Each size of packet has exactly one header version
+	if(packetLength != length || Packet.packedSize(length - headerSize) != length) {
+	    return null;
+	}
+	int dest = Utility.getUnsigned(buf, offset, addrSize);
+	int src = Utility.getUnsigned(buf, offset + addrSize, addrSize);
+	int ttl = buf[ttlOffset] & 0x0f;
+	int protocol = buf[ttlOffset + 1] & 0xff;
+	int seq = Utility.getInt(buf, offset + headerSize - 4);
+
 	try {
-	    return new Packet(dest, src, ttl, protocol, seq, payload);
+	    if(copy) {
+		return new Packet(dest, src, ttl, protocol, seq, Arrays.copyOfRange(buf, offset + headerSize, offset + length));
+	    }
+	    return new Packet(dest, src, ttl, protocol, seq, buf, offset + headerSize, length - headerSize);
 	}catch(IllegalArgumentException e) {
 	    // will return null
 	}
 	return null;
     }
-    
+
+    // Size of the header with a length field of lengthSize bytes
+    private static int headerSize(int lengthSize) {
+	return 2 * Packet.addressSize + lengthSize + 6;
+    }
+
     /**
      * Tests if the address is a valid one
      * @param addr Address to check
      * @return True is address is valid, else false
      */
     public static boolean validAddress(int addr) {
-	return (addr <= MAX_ADDRESS && addr >= 0);
+	return (addr <= Packet.maxAddress() && addr >= 0);
     }
 
     /**
@@ -192,15 +490,15 @@ public class Packet {
      * @return True if packet is valid, else false
      */
     public boolean isValid() {
-	return this.isValid(this.dest, this.src, this.ttl, this.protocol, this.payload.length + HEADER_SIZE);
+	return this.isValid(this.dest, this.src, this.ttl, this.protocol, this.getPackedSize());
     }
 
     private boolean isValid(int dest, int src, int ttl, int protocol, int size) {
-	return (dest <= MAX_ADDRESS && dest >= 0   &&
+	return (Packet.validAddress(dest)          &&
 		Packet.validAddress(src)           &&
 		Protocol.isProtocolValid(protocol) &&
 		ttl <= MAX_TTL && ttl >= 0         &&
-		size <= MAX_PACKET_SIZE);
+		size <= MAX_MTU);
 
     }
 
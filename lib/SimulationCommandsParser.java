@@ -16,6 +16,27 @@ public class SimulationCommandsParser extends CommandsParser {
 	this.simulator = simulator;
     }
 
+    /**
+     * Process one line of topology file or keyboard input. Also handles the checkpoint and restore commands,
+     * which only make sense for a simulation
+     * @param line A command line.
+     * @param now The current time in microseconds
+     * @return How long to defer further processing. Returns -1 if do not have to defer
+     */
+    public long parseLine(String line, long now) {
+	if(!this.skipLine(line)) {
+	    String[] cmd = line.split(" ");
+	    if(cmd[0].equals("checkpoint")) {
+		this.checkpoint(cmd);
+		return -1;
+	    }
+	    if(cmd[0].equals("restore")) {
+		return this.restore(cmd);
+	    }
+	}
+	return super.parseLine(line, now);
+    }
+
     protected void parseNodeCmd(String[] cmd) {
 	if(cmd.length < 2) {
 	    return;
@@ -37,6 +58,34 @@ public class SimulationCommandsParser extends CommandsParser {
 	}
     }
 
+    private void checkpoint(String[] cmd) {
+	if(cmd.length != 2) {
+	    System.err.println("Error parsing checkpoint command: ");
+	    this.printStrArray(cmd, System.err);
+	    return;
+	}
+	try {
+	    this.simulator.checkpoint(cmd[1]);
+	}catch(Exception e) {
+	    System.err.println("Could not save checkpoint to " + cmd[1] + ". Exception: " + e);
+	}
+    }
+
+    // Returns the restored time, so that parsing resumes once the clock has been restored
+    private long restore(String[] cmd) {
+	if(cmd.length != 2) {
+	    System.err.println("Error parsing restore command: ");
+	    this.printStrArray(cmd, System.err);
+	    return -1;
+	}
+	try {
+	    return this.simulator.restore(cmd[1]);
+	}catch(Exception e) {
+	    System.err.println("Could not restore checkpoint from " + cmd[1] + ". Exception: " + e);
+	    return -1;
+	}
+    }
+
     protected void exit(String[] cmd) {
 	if(cmd[0].equals("exit")) {
 	    simulator.stop();
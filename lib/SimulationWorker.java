@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * <pre>
+ * Thread that runs the events of one partition of the nodes in a parallel simulation.
+ * The Simulator opens a window of simulated time, every worker runs the events of its own nodes that fall in the
+ * window, and then all workers wait at the barrier. Events for nodes of other partitions are collected in the
+ * outbox and handed over by the Simulator between windows.
+ * </pre>
+ */
+public class SimulationWorker extends Thread {
+
+    private SortedEventQueue queue;
+    private ArrayList outbox;       // events created for nodes of other partitions
+    private CyclicBarrier barrier;
+    private int index;
+    private long now;               // simulated time of this partition in microseconds
+    private int currentNode;        // node whose event is being run, -1 if none
+    private long windowEnd;
+    private DeliveryEvent.Pool deliveryPool;
+
+    /**
+     * Create a new worker
+     * @param simulator The simulator that the worker runs events for
+     * @param index The index of the partition that this worker runs
+     * @param barrier The barrier shared by the Simulator and all workers
+     */
+    public SimulationWorker(Simulator simulator, int index, CyclicBarrier barrier) {
+	super("SimulationWorker-" + index);
+	this.setDaemon(true);
+	this.queue = new SortedEventQueue();
+	this.outbox = new ArrayList();
+	this.barrier = barrier;
+	this.index = index;
+	this.now = 0;
+	this.currentNode = -1;
+	this.windowEnd = 0;
+	this.deliveryPool = new DeliveryEvent.Pool();
+    }
+
+    public void run() {
+	try {
+	    while(true) {
+		this.barrier.await();  // wait for the window to open
+		Event nextEvent;
+		while((nextEvent = this.queue.getNextEvent()) != null && nextEvent.timeToOccur() < this.windowEnd) {
+		    this.queue.removeNextEvent();
+		    this.now = nextEvent.timeToOccur();
+		    this.currentNode = nextEvent.node();
+		    try {
+			nextEvent.invoke();
+		    }catch(Exception e) {
+			System.err.println("Exception while trying to invoke method in " + this.getName() + ". Error: " + e);
+			e.printStackTrace();
+		    }
+		    this.currentNode = -1;
+		}
+		this.barrier.await();  // window done
+	    }
+	}catch(InterruptedException e) {
+	    // Simulation is over
+	}catch(BrokenBarrierException e) {
+	    // Simulation is over
+	}
+    }
+
+    /**
+     * Sets the end of the next window. Events before, and not at, this time are run in the window
+     * @param windowEnd Time in microseconds
+     */
+    public void setWindowEnd(long windowEnd) {
+	this.windowEnd = windowEnd;
+    }
+
+    public SortedEventQueue getQueue() {
+	return this.queue;
+    }
+
+    /**
+     * Replaces the queue of this worker with an empty one. Only call between windows
+     */
+    public void clearQueue() {
+	this.queue = new SortedEventQueue();
+    }
+
+    /**
+     * @return The pool of the delivery events created and run by this worker
+     */
+    public DeliveryEvent.Pool getDeliveryPool() {
+	return this.deliveryPool;
+    }
+
+    public ArrayList getOutbox() {
+	return this.outbox;
+    }
+
+    public int getIndex() {
+	return this.index;
+    }
+
+    /**
+     * @return The simulated time of this partition in microseconds
+     */
+    public long getNow() {
+	return this.now;
+    }
+
+    public void setNow(long now) {
+	this.now = now;
+    }
+
+    /**
+     * @return The node whose event is being run, -1 if none
+     */
+    public int getCurrentNode() {
+	return this.currentNode;
+    }
+
+    public void setCurrentNode(int currentNode) {
+	this.currentNode = currentNode;
+    }
+}
@@ -1,40 +1,92 @@
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
 
 /**
  * <pre>
  * Manages a simulation. All nodes are instantiated in process.
+ *
+ * Events at the same time are ordered by the node whose event created them, and then by the order in which that
+ * node created them. Unlike a single global insertion order, this does not depend on how the events of different
+ * nodes interleave, so a headless simulation can be run in parallel: the nodes are partitioned across
+ * SimulationWorkers, and the workers run windows of simulated time no longer than the smallest edge delay, since
+ * no packet sent in a window can arrive at another partition before the window ends. Commands from the topology
+ * and fishnet files are run between windows. A parallel run gives the same results as a sequential one.
+ *
+ * The state of a simulation can be saved to a checkpoint file and restored later, so that many experiments
+ * can start from the same warmed up state. See checkpoint and restore
+ *
+ * A simulation of more than MAX_NODES_TO_SIMULATE nodes selects wide addresses for all packets, so that it can
+ * have up to MAX_WIDE_NODES_TO_SIMULATE nodes. See Packet.setWideAddresses
  * </pre>
  */
 public class Simulator extends Manager {
 
     public static final int MAX_NODES_TO_SIMULATE = Packet.MAX_ADDRESS - 1;
-    private long now;  // simulated time in microseconds
+    public static final int MAX_WIDE_NODES_TO_SIMULATE = Packet.MAX_WIDE_ADDRESS - 1;  // with wide addresses
+    private static final int ORDER_SOURCE_SHIFT = 40;  // an event's order is (creating node + 1) << 40 | count
+    private long now;  // simulated time in microseconds, of the main thread
     private double timescale;
     private Node[] nodes;
     private SimulationCommandsParser topoFileParser;
     private IOThread ioThread;
+    private boolean headless;
+    private String fishnetFile;
+    private SimulationCommandsParser fishFileParser;
+    private int currentNode;      // node whose event is being run on the main thread, -1 if none
+    private long[] eventCounts;   // number of events created by each node. Index 0 counts events not created by a node
+    private int numWorkers;
+    private SimulationWorker[] workers;  // null unless running in parallel
+    private int[] partitionOf;           // index of the worker of each node
+    private CyclicBarrier barrier;
+    private long lookahead;              // in microseconds
+    private DeliveryEvent.Pool deliveryPool;  // delivery events of the main thread
+    private Integer[] addresses;              // boxed node addresses, passed to Node.onReceive
 
     /**
      * Creates a new simulation
      * @param numNodes The number of nodes to simulate
      * @param topoFile The name of the topology file to use
-     * @throws IllegalArgumentException If the number of nodes to simulate is < 0 or > MAX_NODES_TO_SIMULATE
+     * @throws IllegalArgumentException If the number of nodes to simulate is < 0 or > MAX_WIDE_NODES_TO_SIMULATE
      * @throws FileNotFoundException If the given topology file cannot be found
      */
     public Simulator(int numNodes, String topoFile) throws IllegalArgumentException, FileNotFoundException {
 	super(0);
 	super.setParser(new SimulationCommandsParser(this));
-	if(numNodes <= 0 || numNodes > MAX_NODES_TO_SIMULATE) {
+	if(numNodes <= 0 || numNodes > MAX_WIDE_NODES_TO_SIMULATE) {
 	    throw new IllegalArgumentException("Invalid number of nodes given to simulate. Nodes given: " + numNodes);
 	}
+	Packet.setWideAddresses(numNodes > MAX_NODES_TO_SIMULATE);
 
 	this.now = 0;
 
 	this.timescale = 1.0;
+	this.currentNode = -1;
+	this.eventCounts = new long[numNodes + 1];
+	this.numWorkers = 1;
+	this.workers = null;
+
+	this.deliveryPool = new DeliveryEvent.Pool();
+	this.addresses = new Integer[numNodes];
+	for(int i = 0; i < numNodes; i++) {
+	    this.addresses[i] = Integer.valueOf(i);
+	}
 
 	this.nodes = new Node[numNodes];
 	for(int i = 0; i < numNodes; i++) {
@@ -45,15 +97,19 @@ public class Simulator extends Manager {
 
 	long deferTill = this.topoFileParser.parseFile(topoFile, this.now);
 
-	this.addEvent(deferTill, "parseRestOfTopoFile", this, null, null);
-	this.ioThread = new IOThread();
-	this.ioThread.start();
+	this.addEvent(deferTill, this::parseRestOfTopoFile);
+	this.headless = false;
+	this.fishnetFile = null;
     }
 
     /**
      * Starts the simulation
      */
     public void start() {
+	if(this.headless && this.numWorkers > 1) {
+	    this.createWorkers();
+	}
+
 	// Start all the nodes
 	for(int i = 0; i < this.nodes.length; i++) {
 	    this.nodes[i].start();
@@ -61,6 +117,14 @@ public class Simulator extends Manager {
 
 	this.now = 1;
 
+	if(this.headless) {
+	    this.runHeadless();
+	    return;
+	}
+
+	this.ioThread = new IOThread();
+	this.ioThread.start();
+
 	Event nextEvent;
 	long waitTime; // time in microseconds
 	long deferParsingTill = 0;
@@ -102,12 +166,7 @@ public class Simulator extends Manager {
 		// Run all pending events
 		while((nextEvent != null) && (nextEvent.timeToOccur() <= this.now)) {
 		    this.sortedEvents.removeNextEvent();
-		    try {
-			nextEvent.callback().invoke();
-		    }catch(Exception e) {
-			System.err.println("Exception while trying to invoke method in Simulator. Error: " + e);
-			e.printStackTrace();
-		    }
+		    this.runEvent(nextEvent);
 		    nextEvent = this.sortedEvents.getNextEvent();
 		}
 	    }
@@ -118,37 +177,54 @@ public class Simulator extends Manager {
      * Send the pkt to the specified node
      * @param from The node that is sending the packet
      * @param to Int spefying the destination node
-     * @param pkt The packet to be sent, serialized to a byte array
+     * @param pkt The packet to be sent. The same Packet object is delivered to every receiver.
+     *            A unicast packet that is dropped is released here
      * @return True if the packet was sent, false otherwise
      * @throws IllegalArgumentException If the arguments are invalid
      */
-    public boolean sendPkt(int from, int to, byte[] pkt) throws IllegalArgumentException {
+    public boolean sendPkt(int from, int to, Packet pkt) throws IllegalArgumentException {
 	super.sendPkt(from, to, pkt);  // check arguments
 	Edge edge;
-	if(to == Packet.BROADCAST_ADDRESS) {
-	    for(int i = 0; i < this.nodes.length; i++) {
-		edge = Topology.GetInstance().getLiveEdge(from, i);
-		if(edge != null) {
+	if(to == Packet.broadcastAddress()) {
+	    ArrayList liveEdges = Topology.GetInstance().getLiveEdges(from);
+	    for(int j = 0; j < liveEdges.size(); j++) {
+		edge = (Edge)liveEdges.get(j);
+		int i = edge.getNeighbor(from);
+		if(i < this.nodes.length) {
 		    this.deliverPkt(i, this.nodes[i], from, pkt, edge);
 		}
 
 		//this.nodes[from].onReceive(from, pkt);  // Should the node that broadcast also receive the pkt?
 	    }
 	}else if((edge = Topology.GetInstance().getLiveEdge(from, to)) != null) {
-	    this.deliverPkt(to, this.nodes[to], from, pkt, edge);
+	    if(!this.deliverPkt(to, this.nodes[to], from, pkt, edge)) {
+		pkt.release();  // no node will receive it
+	    }
 	}else {
 	    System.err.println("Failed to send pkt from: " + from + " to: " + to);
+	    pkt.release();
 	    return false;
 	}
 	return true;
     }
 
+    /**
+     * Returns the MTU of the edge between two nodes, as set with the edge command
+     * @param from The node that sends packets over the edge
+     * @param to The node at the other end of the edge
+     * @return The size of the largest packet that can be sent from one node to the other, in bytes
+     */
+    public int getMTU(int from, int to) {
+	Edge edge = Topology.GetInstance().getLiveEdge(from, to);
+	return (edge == null) ? super.getMTU(from, to) : edge.getOptions().getMTU();
+    }
+
     /**
      * Retrieve current time in milliseconds
      * @return Current time in milliseconds
      */
     public long now() {
-	return this.now / 1000;
+	return this.currentTime() / 1000;
     }
 
     /**
@@ -156,14 +232,14 @@ public class Simulator extends Manager {
      * @param nodeAddr Addr of node that is registering this timer
      * @param t The time when the timer should fire. Its in milliseconds
      * @param callback The callback to be invoked when the timer fires
+     * @return A handle that can be used to cancel or reschedule the timer. Null if the timer was not added
      */
-    public void addTimerAt(int nodeAddr, long t, Callback callback) {
+    public TimerHandle addTimerAt(int nodeAddr, long t, Task callback) {
 	if( (!this.isNodeAddrValid(nodeAddr)) ) {
-	    return;
+	    return null;
 	}
 
-	super.addTimerAt(nodeAddr, t, callback);
-
+	return super.addTimerAt(nodeAddr, t, callback);
     }
 
     /**
@@ -188,21 +264,411 @@ public class Simulator extends Manager {
 	this.timescale = timescale;
     }
 
+    /**
+     * Runs the simulation without user input and without waiting in real time.
+     * The fishnet file is parsed as a series of events, and the simulated time jumps straight to the next event.
+     * The simulation stops when there are no more events, or when an exit command is parsed
+     * @param headless True to run headless
+     */
+    public void setHeadless(boolean headless) {
+	this.headless = headless;
+    }
+
+    /**
+     * Sets the number of threads that run a headless simulation
+     * @param numWorkers The number of threads. 1 runs the simulation on the main thread
+     */
+    public void setWorkers(int numWorkers) {
+	this.numWorkers = Math.max(1, Math.min(numWorkers, this.nodes.length));
+    }
+
+    /**
+     * Sets the fishnet file that commands should be read from
+     * @param filename The name of the file that commands should be read from
+     * @throws FileNotFoundException If the named filed does not exist, is a directory rather than a regular file, or
+     *                               for some other reason cannot be opened for reading
+     */
+    public void setFishnetFile(String filename) throws FileNotFoundException {
+	super.setFishnetFile(filename);
+	this.fishnetFile = filename;
+    }
+
+    /**
+     * Parses rest of fishnet file in headless mode. Has public accesibility since used as a callback
+     */
+    public void parseRestOfFishFile() {
+	long deferTill = this.fishFileParser.parseRemainder(this.now);
+	this.addEvent(deferTill, this::parseRestOfFishFile);
+    }
+
     /**
      * Parses rest of topology file. Has public accesibility since used as a callback
      */
     public void parseRestOfTopoFile() {
 	long deferTill = this.topoFileParser.parseRemainder(this.now);
-	this.addEvent(deferTill, "parseRestOfTopoFile", this, null, null);
+	this.addEvent(deferTill, this::parseRestOfTopoFile);
+    }
+
+    /**
+     * Saves the state of the simulation to a file: the clock, the packet statistics, the topology, the nodes,
+     * including their sockets, and everything the nodes have scheduled. Commands from the topology and fishnet files are not saved.
+     * The snapshot is a compressed Java serialization stream
+     * @param filename The file to save to
+     * @throws IOException If the file cannot be written, or if a node holds state that is not Serializable
+     */
+    public void checkpoint(String filename) throws IOException {
+	ArrayList events = new ArrayList();
+	ArrayList nodeEvents = new ArrayList();
+	this.getAllEvents(events);
+	for(int i = 0; i < events.size(); i++) {
+	    if(((Event)events.get(i)).node() >= 0) {
+		nodeEvents.add(events.get(i));
+	    }
+	}
+
+	ObjectOutputStream out = new SnapshotOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(filename))));
+	try {
+	    out.writeInt(this.nodes.length);
+	    out.writeLong(this.currentTime());
+	    out.writeObject(this.eventCounts);
+	    out.writeObject(this.getPacketCounts());
+	    out.writeObject(Topology.GetInstance());
+	    out.writeObject(this.nodes);
+	    out.writeObject(nodeEvents);
+	}finally {
+	    out.close();
+	}
+    }
+
+    /**
+     * Replaces the state of the simulation with one saved by checkpoint. Pending commands from the topology and
+     * fishnet files are kept, and everything the nodes had scheduled is dropped.
+     * The simulation must have the same number of nodes as the one that was saved
+     * @param filename The file to restore from
+     * @return The restored time, in microseconds
+     * @throws IOException If the file cannot be read or is not a snapshot of this simulation
+     */
+    public long restore(String filename) throws IOException {
+	long now;
+	long[] eventCounts;
+	int[] packetCounts;
+	Topology topology;
+	Node[] nodes;
+	ArrayList nodeEvents;
+	ObjectInputStream in = new SnapshotInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(filename))));
+	try {
+	    if(in.readInt() != this.nodes.length) {
+		throw new IOException("Snapshot is of a simulation with a different number of nodes");
+	    }
+	    now = in.readLong();
+	    eventCounts = (long[])in.readObject();
+	    packetCounts = (int[])in.readObject();
+	    topology = (Topology)in.readObject();
+	    nodes = (Node[])in.readObject();
+	    nodeEvents = (ArrayList)in.readObject();
+	}catch(ClassNotFoundException e) {
+	    throw new IOException("Snapshot refers to an unknown class: " + e.getMessage());
+	}finally {
+	    in.close();
+	}
+
+	ArrayList events = new ArrayList();
+	this.getAllEvents(events);
+	this.sortedEvents = new SortedEventQueue();
+	if(this.workers != null) {
+	    for(int i = 0; i < this.workers.length; i++) {
+		this.workers[i].clearQueue();
+		this.workers[i].setNow(now);
+	    }
+	}
+
+	this.now = now;
+	// Events created by commands after the restore must still come after the restored ones created by commands
+	this.eventCounts[0] = Math.max(this.eventCounts[0], eventCounts[0]);
+	System.arraycopy(eventCounts, 1, this.eventCounts, 1, this.nodes.length);
+	this.nodes = nodes;
+	this.setPacketCounts(packetCounts);
+	Topology.SetInstance(topology);
+
+	for(int i = 0; i < events.size(); i++) {
+	    Event event = (Event)events.get(i);
+	    if(event.node() < 0) {
+		this.requeue(event);
+	    }
+	}
+	for(int i = 0; i < nodeEvents.size(); i++) {
+	    this.requeue((Event)nodeEvents.get(i));
+	}
+	return now;
     }
 
     /******************** Private Functions ********************/
 
+    // Adds the events in all queues to a list
+    private void getAllEvents(ArrayList events) {
+	this.sortedEvents.getEvents(events);
+	if(this.workers != null) {
+	    for(int i = 0; i < this.workers.length; i++) {
+		this.workers[i].getQueue().getEvents(events);
+	    }
+	}
+    }
+
+    // Puts an event back on the queue it belongs to, keeping its order
+    private void requeue(Event event) {
+	SortedEventQueue queue = this.sortedEvents;
+	if(this.workers != null && event.node() >= 0) {
+	    queue = this.workers[this.partitionOf[event.node()]].getQueue();
+	}
+	if(event instanceof TimerHandle) {
+	    queue.addTimer((TimerHandle)event, event.order());
+	}else {
+	    queue.addEvent(event, event.order());
+	}
+    }
+
+    // Stands in for the simulator in snapshots, so that restored objects refer to the running simulator
+    private static class SimulatorReference implements Serializable {
+    }
+
+    private class SnapshotOutputStream extends ObjectOutputStream {
+	SnapshotOutputStream(OutputStream out) throws IOException {
+	    super(out);
+	    this.enableReplaceObject(true);
+	}
+
+	protected Object replaceObject(Object obj) {
+	    return (obj == Simulator.this) ? new SimulatorReference() : obj;
+	}
+    }
+
+    private class SnapshotInputStream extends ObjectInputStream {
+	SnapshotInputStream(InputStream in) throws IOException {
+	    super(in);
+	    this.enableResolveObject(true);
+	}
+
+	protected Object resolveObject(Object obj) {
+	    return (obj instanceof SimulatorReference) ? Simulator.this : obj;
+	}
+    }
+
+    private void runHeadless() {
+	if(this.fishnetFile != null) {
+	    this.reader = null;  // read through fishFileParser instead
+	    this.fishFileParser = new SimulationCommandsParser(this);
+	    try {
+		long deferTill = this.fishFileParser.parseFile(this.fishnetFile, this.now);
+		this.addEvent(deferTill, this::parseRestOfFishFile);
+	    }catch(FileNotFoundException e) {
+		System.err.println("Could not open fishnet file in Simulator. Exception: " + e);
+	    }
+	}
+
+	if(this.workers != null) {
+	    this.runParallel();
+	}else {
+	    Event nextEvent;
+	    while((nextEvent = this.sortedEvents.removeNextEvent()) != null) {
+		this.runEvent(nextEvent);
+	    }
+	}
+	this.stop();
+    }
+
+    private void createWorkers() {
+	this.barrier = new CyclicBarrier(this.numWorkers + 1);
+	this.workers = new SimulationWorker[this.numWorkers];
+	for(int i = 0; i < this.numWorkers; i++) {
+	    this.workers[i] = new SimulationWorker(this, i, this.barrier);
+	}
+	// Give each worker a contiguous block of addresses, since neighbors often have nearby addresses
+	this.partitionOf = new int[this.nodes.length];
+	for(int i = 0; i < this.nodes.length; i++) {
+	    this.partitionOf[i] = (int)((long)i * this.numWorkers / this.nodes.length);
+	}
+    }
+
+    private void runParallel() {
+	for(int i = 0; i < this.workers.length; i++) {
+	    this.workers[i].start();
+	}
+	this.lookahead = this.getLookahead();
+
+	long time;
+	while((time = this.nextEventTime()) != -1) {
+	    Event global = this.sortedEvents.getNextEvent();
+	    if(global != null && global.timeToOccur() == time) {
+		// Commands come first among the events at this time. Run them, and the events they created for this time
+		this.runMergedEvents(time, true);
+		this.lookahead = this.getLookahead();
+		continue;
+	    }
+	    if(this.lookahead == 0) {
+		// No lookahead, so the events at this time can only be run in order on this thread
+		this.runMergedEvents(time, false);
+		continue;
+	    }
+
+	    long windowEnd = (this.lookahead > Long.MAX_VALUE - time) ? Long.MAX_VALUE : time + this.lookahead;
+	    if(global != null) {
+		windowEnd = Math.min(windowEnd, global.timeToOccur());
+	    }
+	    for(int i = 0; i < this.workers.length; i++) {
+		this.workers[i].setWindowEnd(windowEnd);
+	    }
+	    try {
+		this.barrier.await();  // open the window
+		this.barrier.await();  // wait for all workers to finish it
+	    }catch(InterruptedException e) {
+		System.err.println("Interrupted while waiting for simulation workers. Exception: " + e);
+		return;
+	    }catch(BrokenBarrierException e) {
+		System.err.println("Simulation workers failed. Exception: " + e);
+		return;
+	    }
+
+	    // Hand over packets sent to other partitions
+	    for(int i = 0; i < this.workers.length; i++) {
+		ArrayList outbox = this.workers[i].getOutbox();
+		for(int j = 0; j < outbox.size(); j++) {
+		    Event event = (Event)outbox.get(j);
+		    this.workers[this.partitionOf[event.node()]].getQueue().addEvent(event, event.order());
+		}
+		outbox.clear();
+	    }
+	}
+
+	for(int i = 0; i < this.workers.length; i++) {
+	    this.now = Math.max(this.now, this.workers[i].getNow());
+	}
+    }
+
+    // Runs the events at time on this thread, in order, across all queues.
+    // If onlyCommands is true, stops at the first event that was created by a node
+    private void runMergedEvents(long time, boolean onlyCommands) {
+	while(true) {
+	    SortedEventQueue queue = this.sortedEvents;
+	    Event next = queue.getNextEvent();
+	    for(int i = 0; i < this.workers.length; i++) {
+		Event candidate = this.workers[i].getQueue().getNextEvent();
+		if(candidate != null && (next == null || SortedEventQueue.before(candidate, next))) {
+		    queue = this.workers[i].getQueue();
+		    next = candidate;
+		}
+	    }
+	    if(next == null || next.timeToOccur() != time ||
+	       (onlyCommands && (next.order() >>> ORDER_SOURCE_SHIFT) != 0)) {
+		return;
+	    }
+	    queue.removeNextEvent();
+	    int node = next.node();
+	    this.runEvent(next);  // may recycle next
+	    if(node >= 0) {
+		this.workers[this.partitionOf[node]].setNow(time);
+	    }
+	}
+    }
+
+    // Returns the time of the earliest event in any queue, -1 if there are none
+    private long nextEventTime() {
+	long time = -1;
+	Event next = this.sortedEvents.getNextEvent();
+	if(next != null) {
+	    time = next.timeToOccur();
+	}
+	for(int i = 0; i < this.workers.length; i++) {
+	    next = this.workers[i].getQueue().getNextEvent();
+	    if(next != null && (time == -1 || next.timeToOccur() < time)) {
+		time = next.timeToOccur();
+	    }
+	}
+	return time;
+    }
+
+    private long getLookahead() {
+	long minDelay = Topology.GetInstance().getMinDelay();
+	return (minDelay > Long.MAX_VALUE / 1000) ? Long.MAX_VALUE : minDelay * 1000;
+    }
+
+    // Runs an event on the main thread
+    private void runEvent(Event event) {
+	this.now = Math.max(this.now, event.timeToOccur());
+	this.currentNode = event.node();
+	try {
+	    event.invoke();
+	}catch(Exception e) {
+	    System.err.println("Exception while trying to invoke method in Simulator. Error: " + e);
+	    e.printStackTrace();
+	}
+	this.currentNode = -1;
+    }
+
+    /**
+     * Puts an event on the queue of the node it is for, ordered by the node that created it
+     * @param event The event to queue
+     */
+    protected void queueEvent(Event event) {
+	SimulationWorker worker = this.currentWorker();
+	long order = this.nextOrder(worker);
+	if(this.workers == null || event.node() < 0) {
+	    this.sortedEvents.addEvent(event, order);
+	    return;
+	}
+	SimulationWorker target = this.workers[this.partitionOf[event.node()]];
+	if(worker == null || worker == target) {
+	    target.getQueue().addEvent(event, order);
+	}else {
+	    // Handed over between windows
+	    event.setOrder(order);
+	    worker.getOutbox().add(event);
+	}
+    }
+
+    /**
+     * Puts a timer on the queue of the node that registered it, ordered by the node that created it.
+     * A timer in the past fires as soon as possible, so that simulated time never goes backwards
+     * @param timer The timer to queue. Must not already be pending
+     */
+    protected void queueTimer(TimerHandle timer) {
+	SimulationWorker worker = this.currentWorker();
+	long now = this.currentTime();
+	if(timer.timeToOccur() < now) {
+	    timer.setTimeToOccur(now);
+	}
+	long order = this.nextOrder(worker);
+	if(this.workers == null || timer.node() < 0) {
+	    this.sortedEvents.addTimer(timer, order);
+	}else {
+	    this.workers[this.partitionOf[timer.node()]].getQueue().addTimer(timer, order);
+	}
+    }
+
+    private long nextOrder(SimulationWorker worker) {
+	int source = (worker == null) ? this.currentNode : worker.getCurrentNode();
+	return ((long)(source + 1) << ORDER_SOURCE_SHIFT) | this.eventCounts[source + 1]++;
+    }
+
+    private SimulationWorker currentWorker() {
+	Thread thread = Thread.currentThread();
+	if(thread instanceof SimulationWorker) {
+	    return (SimulationWorker)thread;
+	}
+	return null;
+    }
+
+    // Simulated time, in microseconds, of the calling thread
+    private long currentTime() {
+	SimulationWorker worker = this.currentWorker();
+	return (worker == null) ? this.now : worker.getNow();
+    }
+
     private boolean isNodeAddrValid(int nodeAddr) {
 	return ((nodeAddr >= 0) && (nodeAddr < this.nodes.length));
     }
 
-    private void deliverPkt(int destAddr, Node destNode, int srcAddr, byte[] pkt, Edge edge) {
+    // Returns false if the packet was dropped
+    private boolean deliverPkt(int destAddr, Node destNode, int srcAddr, Packet pkt, Edge edge) {
         /*
          * Mar. 12, 2006
          * Hao Wang
@@ -213,14 +679,37 @@ public class Simulator extends Manager {
 	/*
          * long timeToDeliver = edge.schedulePkt(srcAddr, pkt.length, this.now);
          */
-        long timeToDeliver = edge.schedulePkt(this,srcAddr, pkt.length, this.now);
+        long timeToDeliver = edge.schedulePkt(this,srcAddr, pkt.getPackedSize(), this.currentTime());
 	if(timeToDeliver == -1) {
-	    return;  // pkt dropped
+	    return false;  // pkt dropped
 	}
 
-	String[] paramTypes = {"java.lang.Integer", "[B"};
-	Object[] params = {new Integer(srcAddr), pkt};
-	this.addEvent(timeToDeliver, "onReceive", destNode, paramTypes, params);
+	this.queueEvent(this.getDeliveryPool().obtain(timeToDeliver, destAddr, destNode, this.addresses[srcAddr], pkt));
+	return true;
+    }
+
+    /**
+     * Returns the pool of delivery events of the calling thread
+     * @return The pool
+     */
+    DeliveryEvent.Pool getDeliveryPool() {
+	SimulationWorker worker = this.currentWorker();
+	return (worker == null) ? this.deliveryPool : worker.getDeliveryPool();
+    }
+
+    /**
+     * Returns the number of delivery events allocated so far. Once the pools have warmed up,
+     * delivering a packet allocates nothing, so this stays constant
+     * @return The number of delivery events allocated by all threads
+     */
+    public int getDeliveryEventsAllocated() {
+	int allocated = this.deliveryPool.getAllocated();
+	if(this.workers != null) {
+	    for(int i = 0; i < this.workers.length; i++) {
+		allocated += this.workers[i].getDeliveryPool().getAllocated();
+	    }
+	}
+	return allocated;
     }
 
     private String getUserInput(long timeout) {
@@ -1,21 +1,30 @@
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.lang.IndexOutOfBoundsException;
+import java.util.ArrayList;
 
 /**
- * <pre>   
- * This is a list of Events which should kept sorted by the time at which they are to be invoked.
- * </pre>   
+ * <pre>
+ * This is a queue of Events which is kept ordered by the time at which they are to be invoked.
+ * Events are stored in a binary min-heap, so adding and removing an event costs O(log n) in the
+ * number of pending events. Events that are to occur at the same time are returned in the order
+ * in which they were added, so runs are reproducible.
+ * </pre>
  */
 public class SortedEventQueue {
 
-    private LinkedList eventList;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private Event[] heap;
+    private int size;
+    private long nextOrder;  // insertion counter used to break ties between events at the same time
+    private TimingWheel timers;
 
     /**
      * Create a new empty event queue.
      */
     public SortedEventQueue() {
-	this.eventList = new LinkedList();
+	this.heap = new Event[INITIAL_CAPACITY];
+	this.size = 0;
+	this.nextOrder = 0;
+	this.timers = new TimingWheel();
     }
 
     /**
@@ -23,16 +32,50 @@ public class SortedEventQueue {
      * @param event The event to add to the queue.
      */
     public void addEvent(Event event) {
-	ListIterator sortedIterator = eventList.listIterator();
+	this.addEvent(event, this.nextOrder++);
+    }
 
-	while (sortedIterator.hasNext()) {
-	    if (event.timeToOccur() < ((Event)(sortedIterator.next())).timeToOccur()) {
-		this.eventList.add(sortedIterator.previousIndex(), event);		
-		return;
-	    }
+    /**
+     * Add an event to the queue in a sorted manner, using the given order instead of insertion order
+     * to break ties between events at the same time. A queue should either always or never be given orders.
+     * @param event The event to add to the queue.
+     * @param order The order of the event among events at the same time. Must be unique
+     */
+    public void addEvent(Event event, long order) {
+	event.setOrder(order);
+	if(this.size == this.heap.length) {
+	    Event[] newHeap = new Event[this.heap.length * 2];
+	    System.arraycopy(this.heap, 0, newHeap, 0, this.size);
+	    this.heap = newHeap;
 	}
-	//If you've gotten to the end of the list, add it there.
-	this.eventList.add(event); 
+	this.siftUp(this.size++, event);
+    }
+
+    /**
+     * Add a cancellable timer to the queue.
+     * @param timer The timer to add to the queue. Must not already be pending
+     */
+    public void addTimer(TimerHandle timer) {
+	this.addTimer(timer, this.nextOrder++);
+    }
+
+    /**
+     * Add a cancellable timer to the queue, using the given order instead of insertion order.
+     * @param timer The timer to add to the queue. Must not already be pending
+     * @param order The order of the timer among events at the same time. Must be unique
+     */
+    public void addTimer(TimerHandle timer, long order) {
+	timer.setOrder(order);
+	timer.setQueue(this);
+	this.timers.add(timer);
+    }
+
+    /**
+     * Remove a pending timer from the queue
+     * @param timer The timer to remove
+     */
+    public void cancelTimer(TimerHandle timer) {
+	this.timers.remove(timer);
     }
 
     /**
@@ -40,10 +83,12 @@ public class SortedEventQueue {
      * @return The next Event to happen. Returns null if the queue is empty
      */
     public Event getNextEvent() {
-	if(this.isEmpty()) {
-	    return null;
+	Event first = (this.size == 0) ? null : this.heap[0];
+	TimerHandle timer = this.timers.peek(first == null ? Long.MAX_VALUE : first.timeToOccur());
+	if(timer != null && (first == null || before(timer, first))) {
+	    return timer;
 	}
-	return (Event)(this.eventList.getFirst());
+	return first;
     }
 
     /**
@@ -51,17 +96,85 @@ public class SortedEventQueue {
      * @return The next Event to happen. Returns null if the queue is empty
      */
     public Event removeNextEvent() {
-	if(this.isEmpty()) {
+	Event first = this.getNextEvent();
+	if(first == null) {
 	    return null;
 	}
-	return (Event)(this.eventList.removeFirst());
+	if(first instanceof TimerHandle && ((TimerHandle)first).isPending()) {
+	    this.timers.remove((TimerHandle)first);
+	    return first;
+	}
+	Event last = this.heap[--this.size];
+	this.heap[this.size] = null;
+	if(this.size > 0) {
+	    this.siftDown(0, last);
+	}
+	return first;
     }
-    
+
     /**
      * Checks if the event queue is empty
      * @return True if the event queue is empty
      */
     public boolean isEmpty() {
-	return (this.eventList.size() == 0);
+	return (this.size == 0) && this.timers.isEmpty();
+    }
+
+    /**
+     * Returns the number of events in the queue, including pending timers
+     * @return The number of pending events
+     */
+    public int size() {
+	return this.size + this.timers.size();
+    }
+
+    /**
+     * Adds all events in the queue, including pending timers, to a list. The queue is not changed
+     * @param events The list to add the events to. They are not added in any particular order
+     */
+    public void getEvents(ArrayList events) {
+	for(int i = 0; i < this.size; i++) {
+	    events.add(this.heap[i]);
+	}
+	this.timers.getTimers(events);
+    }
+
+    //********** Private Functions **********
+
+    // Returns true if a should occur before b
+    static boolean before(Event a, Event b) {
+	if(a.timeToOccur() != b.timeToOccur()) {
+	    return a.timeToOccur() < b.timeToOccur();
+	}
+	return a.order() < b.order();
+    }
+
+    private void siftUp(int index, Event event) {
+	while(index > 0) {
+	    int parent = (index - 1) >>> 1;
+	    if(!before(event, this.heap[parent])) {
+		break;
+	    }
+	    this.heap[index] = this.heap[parent];
+	    index = parent;
+	}
+	this.heap[index] = event;
+    }
+
+    private void siftDown(int index, Event event) {
+	int half = this.size >>> 1;
+	while(index < half) {
+	    int child = (index << 1) + 1;
+	    int right = child + 1;
+	    if(right < this.size && before(this.heap[right], this.heap[child])) {
+		child = right;
+	    }
+	    if(!before(this.heap[child], event)) {
+		break;
+	    }
+	    this.heap[index] = this.heap[child];
+	    index = child;
+	}
+	this.heap[index] = event;
     }
 }
@@ -0,0 +1,11 @@
+import java.io.Serializable;
+
+/**
+ * <pre>
+ * A Task is the work done when a timer fires, such as a lambda or a Callback.
+ * Tasks are Serializable, so that the pending timers of the nodes can be saved in a simulation checkpoint.
+ * A lambda is Serializable when everything it captures is
+ * </pre>
+ */
+public interface Task extends Runnable, Serializable {
+}
@@ -0,0 +1,73 @@
+/**
+ * <pre>
+ * A TimerHandle is a timer Event returned by Manager.addTimer and Manager.addTimerAt.
+ * It can be cancelled or rescheduled in O(1) time, so a cancelled timer never reaches the event loop.
+ * A handle whose timer has fired can be rescheduled to fire again.
+ * </pre>
+ */
+public class TimerHandle extends Event {
+
+    static final int NOT_QUEUED = -1;
+    static final int EXPIRED = -2;
+    static final int OVERFLOW = -3;
+
+    private Manager manager;
+    private transient SortedEventQueue queue;
+
+    // Links and position used by TimingWheel. A restored timer is filed again
+    transient TimerHandle prev;
+    transient TimerHandle next;
+    int level;
+    int slot;
+
+    /**
+     * @param manager The manager that the timer was registered with
+     * @param timeToOccur The time at which the timer should fire, in microseconds
+     * @param node The address of the node that registered the timer
+     * @param task The task to be run when the timer fires
+     */
+    public TimerHandle(Manager manager, long timeToOccur, int node, Runnable task) {
+	super(timeToOccur, node, task);
+	this.manager = manager;
+	this.queue = null;
+	this.level = NOT_QUEUED;
+    }
+
+    /**
+     * @return True if the timer is waiting to fire
+     */
+    public boolean isPending() {
+	return this.level != NOT_QUEUED;
+    }
+
+    /**
+     * Cancels the timer. Does nothing if the timer has already fired or been cancelled
+     */
+    public void cancel() {
+	if(this.isPending()) {
+	    this.queue.cancelTimer(this);
+	}
+    }
+
+    /**
+     * Reschedules the timer to fire deltaT milliseconds from now, replacing any pending firing
+     * @param deltaT The time interval after which the timer should fire. In milliseconds
+     */
+    public void reschedule(long deltaT) {
+	this.rescheduleAt(this.manager.now() + deltaT);
+    }
+
+    /**
+     * Reschedules the timer to fire at time t, replacing any pending firing
+     * @param t The time when the timer should fire. In milliseconds
+     */
+    public void rescheduleAt(long t) {
+	this.cancel();
+	this.setTimeToOccur(t * 1000);
+	this.manager.queueTimer(this);
+    }
+
+    void setQueue(SortedEventQueue queue) {
+	this.queue = queue;
+    }
+}
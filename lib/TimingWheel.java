@@ -0,0 +1,244 @@
+import java.util.ArrayList;
+
+/**
+ * <pre>
+ * Hierarchical timing wheel holding pending TimerHandles at millisecond granularity.
+ * There are LEVELS wheels of SLOTS slots each. A timer is filed on the lowest level whose span
+ * still covers it, and is cascaded down to finer levels as the wheel's time approaches it. Timers
+ * beyond the top level are kept on an overflow list.
+ *
+ * Adding and removing a timer are O(1). Timers whose time has been reached are moved to the
+ * expired list, which is kept sorted by time and then by insertion order.
+ * </pre>
+ */
+class TimingWheel {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private long now;  // current tick of the wheel, in milliseconds
+    private TimerHandle[][] slots;
+    private long[][] occupied;  // bitmap of non-empty slots for each level
+    private TimerHandle overflow;
+    private TimerHandle expiredHead;
+    private TimerHandle expiredTail;
+    private int count;
+
+    TimingWheel() {
+	this.now = 0;
+	this.slots = new TimerHandle[LEVELS][SLOTS];
+	this.occupied = new long[LEVELS][SLOTS / 64];
+	this.overflow = null;
+	this.expiredHead = null;
+	this.expiredTail = null;
+	this.count = 0;
+    }
+
+    boolean isEmpty() {
+	return this.count == 0;
+    }
+
+    int size() {
+	return this.count;
+    }
+
+    void add(TimerHandle timer) {
+	this.count++;
+	this.file(timer);
+    }
+
+    void remove(TimerHandle timer) {
+	if(timer.level == TimerHandle.EXPIRED) {
+	    if(timer.prev == null) {
+		this.expiredHead = timer.next;
+	    }else {
+		timer.prev.next = timer.next;
+	    }
+	    if(timer.next == null) {
+		this.expiredTail = timer.prev;
+	    }else {
+		timer.next.prev = timer.prev;
+	    }
+	}else if(timer.level == TimerHandle.OVERFLOW) {
+	    this.unlink(timer);
+	    if(timer.prev == null) {
+		this.overflow = timer.next;
+	    }
+	}else {
+	    this.unlink(timer);
+	    if(timer.prev == null) {
+		this.slots[timer.level][timer.slot] = timer.next;
+		if(timer.next == null) {
+		    this.occupied[timer.level][timer.slot >>> 6] &= ~(1L << timer.slot);
+		}
+	    }
+	}
+	timer.prev = null;
+	timer.next = null;
+	timer.level = TimerHandle.NOT_QUEUED;
+	this.count--;
+    }
+
+    void getTimers(ArrayList timers) {
+	for(TimerHandle timer = this.expiredHead; timer != null; timer = timer.next) {
+	    timers.add(timer);
+	}
+	for(int level = 0; level < LEVELS; level++) {
+	    for(int slot = 0; slot < SLOTS; slot++) {
+		for(TimerHandle timer = this.slots[level][slot]; timer != null; timer = timer.next) {
+		    timers.add(timer);
+		}
+	    }
+	}
+	for(TimerHandle timer = this.overflow; timer != null; timer = timer.next) {
+	    timers.add(timer);
+	}
+    }
+
+    /**
+     * Returns the earliest timer, advancing the wheel if no timer has expired yet and the next one is due
+     * no later than limit.
+     * @param limit Time in microseconds. The wheel is not advanced to timers after this time
+     * @return The earliest expired timer, or null if there is none
+     */
+    TimerHandle peek(long limit) {
+	if(this.expiredHead == null && this.count > 0) {
+	    long tick = this.nextTick();
+	    if(tick * 1000 <= limit) {
+		this.advance(tick);
+	    }
+	}
+	return this.expiredHead;
+    }
+
+    //********** Private Functions **********
+
+    private void file(TimerHandle timer) {
+	long tick = timer.timeToOccur() / 1000;
+	if(tick <= this.now) {
+	    this.insertExpired(timer);
+	    return;
+	}
+	for(int level = 0; level < LEVELS; level++) {
+	    int shift = SLOT_BITS * (level + 1);
+	    if((tick >>> shift) == (this.now >>> shift)) {
+		int slot = (int)(tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+		timer.level = level;
+		timer.slot = slot;
+		timer.prev = null;
+		timer.next = this.slots[level][slot];
+		if(timer.next != null) {
+		    timer.next.prev = timer;
+		}
+		this.slots[level][slot] = timer;
+		this.occupied[level][slot >>> 6] |= (1L << slot);
+		return;
+	    }
+	}
+	timer.level = TimerHandle.OVERFLOW;
+	timer.prev = null;
+	timer.next = this.overflow;
+	if(timer.next != null) {
+	    timer.next.prev = timer;
+	}
+	this.overflow = timer;
+    }
+
+    // Keep the expired list sorted. New timers usually belong at the tail
+    private void insertExpired(TimerHandle timer) {
+	timer.level = TimerHandle.EXPIRED;
+	TimerHandle after = this.expiredTail;
+	while(after != null && SortedEventQueue.before(timer, after)) {
+	    after = after.prev;
+	}
+	timer.prev = after;
+	if(after == null) {
+	    timer.next = this.expiredHead;
+	    this.expiredHead = timer;
+	}else {
+	    timer.next = after.next;
+	    after.next = timer;
+	}
+	if(timer.next == null) {
+	    this.expiredTail = timer;
+	}else {
+	    timer.next.prev = timer;
+	}
+    }
+
+    private void unlink(TimerHandle timer) {
+	if(timer.prev != null) {
+	    timer.prev.next = timer.next;
+	}
+	if(timer.next != null) {
+	    timer.next.prev = timer.prev;
+	}
+    }
+
+    // Returns the tick of the earliest pending timer. Only valid if there are no expired timers
+    private long nextTick() {
+	for(int level = 0; level < LEVELS; level++) {
+	    int cursor = (int)(this.now >>> (SLOT_BITS * level)) & SLOT_MASK;
+	    int slot = this.nextOccupied(level, cursor + 1);
+	    if(slot == -1) {
+		continue;
+	    }
+	    if(level == 0) {
+		return (this.now & ~((long)SLOT_MASK)) | slot;
+	    }
+	    return minTick(this.slots[level][slot]);
+	}
+	return minTick(this.overflow);
+    }
+
+    private int nextOccupied(int level, int from) {
+	for(int word = from >>> 6; word < this.occupied[level].length; word++) {
+	    long bits = this.occupied[level][word];
+	    if(word == (from >>> 6)) {
+		bits &= (-1L << from);
+	    }
+	    if(bits != 0) {
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	    }
+	}
+	return -1;
+    }
+
+    // Move the wheel to tick, which must be the tick of the earliest pending timer, cascading timers down
+    private void advance(long tick) {
+	long previous = this.now;
+	this.now = tick;
+	if((tick >>> (SLOT_BITS * LEVELS)) != (previous >>> (SLOT_BITS * LEVELS))) {
+	    TimerHandle list = this.overflow;
+	    this.overflow = null;
+	    this.refile(list);
+	}
+	for(int level = LEVELS - 1; level >= 0; level--) {
+	    int slot = (int)(tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+	    TimerHandle list = this.slots[level][slot];
+	    if(list != null) {
+		this.slots[level][slot] = null;
+		this.occupied[level][slot >>> 6] &= ~(1L << slot);
+		this.refile(list);
+	    }
+	}
+    }
+
+    private void refile(TimerHandle list) {
+	while(list != null) {
+	    TimerHandle next = list.next;
+	    this.file(list);
+	    list = next;
+	}
+    }
+
+    private static long minTick(TimerHandle list) {
+	long min = Long.MAX_VALUE;
+	for(; list != null; list = list.next) {
+	    min = Math.min(min, list.timeToOccur() / 1000);
+	}
+	return min;
+    }
+}
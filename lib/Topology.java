@@ -1,18 +1,28 @@
+import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.ListIterator;
+import java.util.SplittableRandom;
 
 /**
  * <pre>
  * Topology class keeps track of connections between nodes.
  * This is a Singleton object
+ * Each node has a list of its edges sorted by neighbor address, so finding the edge between two nodes is
+ * a binary search over the edges of one of them. The index takes space proportional to the number of edges,
+ * so topologies of tens of thousands of nodes fit when packets have wide addresses.
+ * Each node also has a list of its live edges, which is kept up to date as edges and nodes fail and restart,
+ * so a broadcast only visits the live neighbors of the sender
  * </pre>
  */
-public class Topology {
+public class Topology implements Serializable {
 
     private ArrayList edges;
-    private HashMap failedNodes;
+    private ArrayList[] adjacent;   // edges of each node sorted by neighbor, created when the node gets its first edge
+    private ArrayList[] liveEdges;  // edges of each node that getLiveEdge would return, sorted by neighbor address
+    private BitSet failedNodes;
     private boolean allToAll;
+    private long seed;  // the loss streams of all edges are derived from this
     private static Topology topology = null;
 
     /**
@@ -37,6 +47,14 @@ public class Topology {
 	return Topology.topology;
     }
 
+    /**
+     * Replaces the instance of Topology, e.g. with one restored from a simulation checkpoint
+     * @param topology The new instance
+     */
+    static void SetInstance(Topology topology) {
+	Topology.topology = topology;
+    }
+
     /**
      * Returns the edge between a and b, if one exists and it is live. Returns null otherwise
      * @param a Int specifying a node
@@ -56,7 +74,7 @@ public class Topology {
      * @param node Int specifying node
      */
     public boolean isNodeAlive(int node) {
-	return !this.failedNodes.containsKey(new Integer(node));
+	return node < 0 || !this.failedNodes.get(node);
     }
 
     /**
@@ -79,8 +97,11 @@ public class Topology {
              */
             e.setOptions(options);
 	}else {
-	    e = new Edge(a, b, options);
-	    edges.add(e);
+	    e = new Edge(a, b, options, this.seed);
+	    this.addEdge(e);
+	    if(this.isUsable(e)) {
+		this.addLiveEdge(e);
+	    }
 	}
     }
 
@@ -109,7 +130,17 @@ public class Topology {
      * @param a Int specifying a node
      */
     public void failNode(int a) {
-	this.failedNodes.put(new Integer(a), null);
+	if(!this.isNodeAlive(a)) {
+	    return;
+	}
+	ArrayList edges = this.getEdges(a);
+	for(int i = 0; i < edges.size(); i++) {
+	    Edge e = (Edge)edges.get(i);
+	    if(this.isUsable(e)) {
+		this.removeLiveEdge(e);
+	    }
+	}
+	this.failedNodes.set(a);
     }
 
     /**
@@ -117,7 +148,78 @@ public class Topology {
      * @param a Int specifying a node
      */
     public void restartNode(int a) {
-	this.failedNodes.remove(new Integer(a));
+	if(this.isNodeAlive(a)) {
+	    return;
+	}
+	this.failedNodes.clear(a);
+	ArrayList edges = this.getEdges(a);
+	for(int i = 0; i < edges.size(); i++) {
+	    Edge e = (Edge)edges.get(i);
+	    if(this.isUsable(e)) {
+		this.addLiveEdge(e);
+	    }
+	}
+    }
+
+    /**
+     * Returns the edges of a node that are live and lead to a live node, in the order of the neighbors' addresses.
+     * Edges created implicitly by an all to all topology are not included
+     * @param node Int specifying a node
+     * @return A list of the edges that getLiveEdge(node, neighbor) would return. Must not be modified
+     */
+    public ArrayList getLiveEdges(int node) {
+	if(!this.isValidAddress(node) || this.liveEdges[node] == null) {
+	    return new ArrayList();
+	}
+	return this.liveEdges[node];
+    }
+
+
+    /**
+     * Returns the edges of a node, whether or not they are live. Edges created implicitly by an all to all
+     * topology are not included
+     * @param node Int specifying a node
+     * @return A list of the edges that have node as one of their ends. Must not be modified
+     */
+    public ArrayList getEdges(int node) {
+	if(!this.isValidAddress(node) || this.adjacent[node] == null) {
+	    return new ArrayList();
+	}
+	return this.adjacent[node];
+    }
+
+    /**
+     * Returns the smallest propagation delay of any edge. No packet can arrive sooner than this after it is sent,
+     * so it is the lookahead used by a parallel simulation
+     * @return The smallest delay in milliseconds. Long.MAX_VALUE if there are no edges
+     */
+    public long getMinDelay() {
+	long minDelay = this.allToAll ? new EdgeOptions().getDelay() : Long.MAX_VALUE;
+	ListIterator iter = this.edges.listIterator();
+	while(iter.hasNext()) {
+	    minDelay = Math.min(minDelay, ((Edge)iter.next()).getOptions().getDelay());
+	}
+	return minDelay;
+    }
+
+    /**
+     * Sets the seed of the simulation and restarts the loss streams of all edges from it.
+     * Runs with the same seed and commands lose the same packets
+     * @param seed The seed
+     */
+    public void setSeed(long seed) {
+	this.seed = seed;
+	ListIterator iter = this.edges.listIterator();
+	while(iter.hasNext()) {
+	    ((Edge)iter.next()).setSeed(seed);
+	}
+    }
+
+    /**
+     * @return The seed of the simulation. Random unless set with setSeed
+     */
+    public long getSeed() {
+	return this.seed;
     }
 
 
@@ -125,32 +227,136 @@ public class Topology {
 
     private Topology(boolean allToAll) {
 	this.edges = new ArrayList();
-	this.failedNodes = new HashMap();
+	this.adjacent = new ArrayList[Packet.maxAddress() + 1];
+	this.liveEdges = new ArrayList[Packet.maxAddress() + 1];
+	this.failedNodes = new BitSet();
 	this.allToAll = allToAll;
+	this.seed = new SplittableRandom().nextLong();
     }
 
     private Edge getEdge(int a, int b) {
-	ListIterator iter = this.edges.listIterator();
 	Edge e;
-	while(iter.hasNext()) {
-	    e = (Edge)iter.next();
-	    if (e.isEdge(a, b)) {
-		return e;
-	    }
+	if(this.isValidAddress(a) && this.isValidAddress(b)) {
+	    e = this.indexedEdge(a, b);
+	}else {
+	    e = this.findEdge(a, b);
+	}
+	if(e != null) {
+	    return e;
 	}
 	if(this.allToAll) {
 	    // if no edge exists create one
-	    e = new Edge(a, b, new EdgeOptions());
+	    e = new Edge(a, b, new EdgeOptions(), this.seed);
 	    return e;
 	}
 
 	return null;
     }
 
+    // Binary search the edges of a for the one to b
+    private Edge indexedEdge(int a, int b) {
+	ArrayList list = this.adjacent[a];
+	if(list == null) {
+	    return null;
+	}
+	int low = 0;
+	int high = list.size() - 1;
+	while(low <= high) {
+	    int mid = (low + high) >>> 1;
+	    Edge e = (Edge)list.get(mid);
+	    int neighbor = e.getNeighbor(a);
+	    if(neighbor < b) {
+		low = mid + 1;
+	    }else if(neighbor > b) {
+		high = mid - 1;
+	    }else {
+		return e;
+	    }
+	}
+	return null;
+    }
+
+    // Edges with an end outside the address space are only kept in the list of all edges
+    private Edge findEdge(int a, int b) {
+	ListIterator iter = this.edges.listIterator();
+	while(iter.hasNext()) {
+	    Edge e = (Edge)iter.next();
+	    if(e.isEdge(a, b)) {
+		return e;
+	    }
+	}
+	return null;
+    }
+
+    private void addEdge(Edge e) {
+	int a = e.getNodeA();
+	int b = e.getNodeB();
+	this.edges.add(e);
+	if(!this.isValidAddress(a) || !this.isValidAddress(b)) {
+	    return;  // can never be used by a packet
+	}
+	insert(this.adjacent, a, e);
+	if(a != b) {
+	    insert(this.adjacent, b, e);
+	}
+    }
+
+    // Keep the list sorted by neighbor, so that edges can be found by binary search and
+    // broadcasts reach neighbors in order of address
+    private static void insert(ArrayList[] lists, int node, Edge e) {
+	if(lists[node] == null) {
+	    lists[node] = new ArrayList();
+	}
+	ArrayList list = lists[node];
+	int neighbor = e.getNeighbor(node);
+	int index = list.size();
+	while(index > 0 && ((Edge)list.get(index - 1)).getNeighbor(node) > neighbor) {
+	    index--;
+	}
+	list.add(index, e);
+    }
+
+    // True if the edge is live, both its ends are alive, and it is in the index
+    private boolean isUsable(Edge e) {
+	int a = e.getNodeA();
+	int b = e.getNodeB();
+	return e.isLive() && this.isNodeAlive(a) && this.isNodeAlive(b) &&
+	    this.isValidAddress(a) && this.isValidAddress(b) && this.indexedEdge(a, b) == e;
+    }
+
+    private void addLiveEdge(Edge e) {
+	int a = e.getNodeA();
+	int b = e.getNodeB();
+	insert(this.liveEdges, a, e);
+	if(a != b) {
+	    insert(this.liveEdges, b, e);
+	}
+    }
+
+    private void removeLiveEdge(Edge e) {
+	int a = e.getNodeA();
+	int b = e.getNodeB();
+	this.liveEdges[a].remove(e);
+	if(a != b) {
+	    this.liveEdges[b].remove(e);
+	}
+    }
+
+    // Addresses that fitted in packets when the topology was created
+    private boolean isValidAddress(int node) {
+	return node >= 0 && node < this.adjacent.length;
+    }
+
     private boolean changeEdge(int a, int b, boolean state) {
 	Edge e = this.getEdge(a, b);
 	if(e != null) {
+	    boolean wasUsable = this.isUsable(e);
 	    e.setState(state);
+	    if(!wasUsable && this.isUsable(e)) {
+		this.addLiveEdge(e);
+	    }else if(wasUsable && !this.isUsable(e)) {
+		this.removeLiveEdge(e);
+	    }
 	    return true;
 	}
 
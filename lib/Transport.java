@@ -1,32 +1,60 @@
-import java.math.BigInteger;
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * <pre>   
  * This conveys the header for reliable message transfer.
  * This is carried in the payload of a Packet, and in turn the data being
  * transferred is carried in the payload of the Transport packet.
+ *
+ * The payload of a Transport packet parsed by Transport.view is a view into the parsed bytes.
+ * Read it in place through getPayloadArray, getPayloadOffset and getPayloadLength, since getPayload has to copy it.
+ *
+ * Like Packet, transport packets of up to MAX_PACKET_SIZE bytes use the original header, and larger ones a
+ * wide header, marked by WIDE_VERSION in the top bits of the type byte.
+ *
+ * Ports are 2 bytes long, up to MAX_WIDE_PORT_NUM, when packets have wide addresses. See Packet.setWideAddresses
+ *
+ * The payload of a transport packet can be held in a BufferPool.Buffer, which the packet holds a reference to
+ * until release is called, e.g. by the receiver once it has copied the payload out.
+ *
+ * A transport packet may carry an option area between its header and its payload, marked by OPTIONS_FLAG in
+ * the type bits. The only option understood is SACK_OPTION, which lists up to MAX_SACK_BLOCKS blocks of data
+ * that the receiver holds beyond the sequence number it acknowledges. Packets without options are unchanged.
  * </pre>   
  */
-public class Transport {
+public class Transport implements Serializable {
     
     public static final int MAX_PACKET_SIZE = Packet.MAX_PAYLOAD_SIZE;
     public static final int HEADER_SIZE = 12;
     public static final int MAX_PAYLOAD_SIZE = MAX_PACKET_SIZE - HEADER_SIZE;
     public static final int MAX_PORT_NUM = 255;  // port numbers range from 0 to 255
+    public static final int MAX_WIDE_PORT_NUM = 0xffff;  // with wide addresses
+
+    public static final int WIDE_VERSION = 1;  // header version of transport packets larger than MAX_PACKET_SIZE
+    public static final int WIDE_HEADER_SIZE = 13;
+    public static final int MAX_WIDE_PAYLOAD_SIZE = Packet.MAX_WIDE_PAYLOAD_SIZE - WIDE_HEADER_SIZE;
 
     public static final int SYN = 0;
     public static final int ACK = 1;
     public static final int FIN = 2;
     public static final int DATA = 3;
 
+    public static final int OPTIONS_FLAG = 0x8;  // set in the type bits if there is an option area
+    public static final int SACK_OPTION = 5;     // option kind of the SACK blocks
+    public static final int MAX_SACK_BLOCKS = 4;
+
     private int srcPort;
     private int destPort;
     private int type;
     private int window;
     private int seqNum;
-    private byte[] payload;
+    private byte[] payload;  // may be a view into a larger array
+    private int payloadOffset;
+    private int payloadLength;
+    private BufferPool.Buffer buffer;  // pooled buffer holding the payload, null if it is not pooled
+    private int[] sackBlocks;          // left and right edges of each SACK block, null if there are none
 
     /**
      * Constructing a new transport packet.
@@ -38,10 +66,31 @@ public class Transport {
      * @param payload The payload of the packet.
      */
     public Transport(int srcPort, int destPort, int type, int window, int seqNum, byte[] payload) throws IllegalArgumentException {
-	if(srcPort < 0 || srcPort > MAX_PORT_NUM   ||
-	   destPort < 0 || destPort > MAX_PORT_NUM ||
+	this(srcPort, destPort, type, window, seqNum, payload, 0, payload.length);
+    }
+
+    /**
+     * Constructing a new transport packet whose payload is held in a pooled buffer.
+     * The transport packet takes over one reference to the buffer, which is given up by release
+     * @param srcPort The source port
+     * @param destPort The destination port
+     * @param type The type of packet. Either SYN, ACK, FIN, or DATA
+     * @param window The window size
+     * @param seqNum The sequence number of the packet
+     * @param payload The buffer holding the payload in its first length bytes
+     * @param length The size of the payload in bytes
+     */
+    public Transport(int srcPort, int destPort, int type, int window, int seqNum, BufferPool.Buffer payload, int length) throws IllegalArgumentException {
+	this(srcPort, destPort, type, window, seqNum, payload.array(), 0, length);
+	this.buffer = payload;
+    }
+
+    // Creates a transport packet whose payload is a view into buf
+    private Transport(int srcPort, int destPort, int type, int window, int seqNum, byte[] buf, int offset, int length) throws IllegalArgumentException {
+	if(!Transport.validPort(srcPort)  ||
+	   !Transport.validPort(destPort) ||
 	   type < SYN || type > DATA               ||
-	   payload.length > MAX_PAYLOAD_SIZE) {
+	   length > MAX_WIDE_PAYLOAD_SIZE) {
 	    throw new IllegalArgumentException("Illegal arguments given to Transport packet");
 	}
 
@@ -50,7 +99,11 @@ public class Transport {
 	this.type = type;
 	this.window = window;
 	this.seqNum = seqNum;
-	this.payload = payload;
+	this.payload = buf;
+	this.payloadOffset = offset;
+	this.payloadLength = length;
+	this.buffer = null;
+	this.sackBlocks = null;
     }
 
     /**
@@ -89,51 +142,205 @@ public class Transport {
     }
 
     /**
-     * @return The payload
+     * @return The SACK blocks, as the left edge and the right edge, one past the last byte held, of each
+     *         block one after the other. Null if the packet carries no SACK blocks
+     */
+    public int[] getSackBlocks() {
+	return this.sackBlocks;
+    }
+
+    /**
+     * Sets the SACK blocks the packet carries in its option area. Must be called before the packet is
+     * given to a Packet, since that fixes the size of its payload
+     * @param sackBlocks The left and right edge of each block one after the other, as returned by
+     *                   getSackBlocks. Null or empty if there are none
+     */
+    public void setSackBlocks(int[] sackBlocks) throws IllegalArgumentException {
+	if(sackBlocks != null && (sackBlocks.length % 2 != 0 || sackBlocks.length > 2 * MAX_SACK_BLOCKS)) {
+	    throw new IllegalArgumentException("Illegal SACK blocks given to Transport packet");
+	}
+	this.sackBlocks = (sackBlocks == null || sackBlocks.length == 0) ? null : sackBlocks;
+    }
+
+    /**
+     * @return The payload. It is copied out of the parsed bytes if the payload is a view
      */
     public byte[] getPayload() {
+	if(this.payloadOffset == 0 && this.payloadLength == this.payload.length) {
+	    return this.payload;
+	}
+	return Arrays.copyOfRange(this.payload, this.payloadOffset, this.payloadOffset + this.payloadLength);
+    }
+
+    /**
+     * @return The array holding the payload, starting at getPayloadOffset(). It must not be modified
+     */
+    public byte[] getPayloadArray() {
 	return this.payload;
     }
+
+    /**
+     * @return The index in getPayloadArray() of the first byte of the payload
+     */
+    public int getPayloadOffset() {
+	return this.payloadOffset;
+    }
+
+    /**
+     * @return The size of the payload in bytes
+     */
+    public int getPayloadLength() {
+	return this.payloadLength;
+    }
     
+    /**
+     * Gives up the reference to the pooled buffer holding the payload, if there is one. The payload must
+     * not be used afterwards. Call it once the payload has been copied out, by the one node that the packet
+     * was sent to
+     */
+    public void release() {
+	BufferPool.Buffer buffer = this.buffer;
+	if(buffer != null) {
+	    this.buffer = null;
+	    buffer.release();
+	}
+    }
+
+    /**
+     * @return The number of bytes this transport packet takes on the wire
+     */
+    public int getPackedSize() {
+	// The option area is sized like payload, so it can make a packet need the wide header
+	return Transport.packedSize(this.optionsSize() + this.payloadLength);
+    }
+
+    /**
+     * Returns the number of bytes a transport packet takes on the wire
+     * @param payloadLength The size of the payload of the transport packet, in bytes
+     * @return The size of the transport packet, including the header it is sent with
+     */
+    public static int packedSize(int payloadLength) {
+	int size = Transport.headerSize(1) + payloadLength;
+	return (size <= MAX_PACKET_SIZE) ? size : size + 1;  // the wide header has a 2 byte length
+    }
+
+    /**
+     * Returns the largest transport payload that can be sent over an edge, i.e. the maximum segment size
+     * @param mtu The MTU of the edge, in bytes
+     * @return The size, in bytes, of the largest payload of a transport packet sent in a packet of at most mtu bytes
+     */
+    public static int maxPayloadSize(int mtu) {
+	int room = Packet.maxPayloadSize(mtu);
+	if(room <= MAX_PACKET_SIZE) {
+	    return room - Transport.headerSize(1);
+	}
+	return Math.max(room - Transport.headerSize(2), MAX_PACKET_SIZE - Transport.headerSize(1));
+    }
+
+    /**
+     * @return The largest port number, MAX_PORT_NUM or MAX_WIDE_PORT_NUM if packets have wide addresses
+     */
+    public static int maxPortNum() {
+	return Packet.hasWideAddresses() ? MAX_WIDE_PORT_NUM : MAX_PORT_NUM;
+    }
+
+    /**
+     * Tests if the port number is a valid one
+     * @param port Port number to check
+     * @return True if the port number is valid, else false
+     */
+    public static boolean validPort(int port) {
+	return port >= 0 && port <= Transport.maxPortNum();
+    }
+
     /**
      * Convert the Transport packet object into a byte array for sending over the wire.
      * Format:
-     *        source port = 1 byte
-     *        destination port = 1 byte
-     *        type = 1 byte
-     *        window size = 4 bytes
-     *        sequence number = 4 bytes
-     *        packet length = 1 byte
-     *        payload <= MAX_PAYLOAD_SIZE bytes
+     *        source port = 1 byte, or 2 bytes most significant byte first with wide addresses
+     *        destination port = 1 byte, or 2 bytes most significant byte first with wide addresses
+     *        version = 4 bits. 0 for transport packets of up to MAX_PACKET_SIZE bytes, else WIDE_VERSION
+     *        type = 4 bits
+     *        window size = 4 bytes, most significant byte first
+     *        sequence number = 4 bytes, most significant byte first
+     *        packet length = 1 byte, or 2 bytes most significant byte first if the version is WIDE_VERSION
+     *        only if OPTIONS_FLAG is set in the type bits:
+     *            options length = 1 byte, the number of bytes of options that follow
+     *            options, each one:
+     *                kind = 1 byte
+     *                length = 1 byte, the size of the option including kind and length
+     *                data = length - 2 bytes. For SACK_OPTION, the left and right edge of each block,
+     *                       4 bytes each, most significant byte first
+     *        payload <= MAX_WIDE_PAYLOAD_SIZE bytes
      * @return A byte[] for transporting over the wire. Null if failed to pack for some reason
      */
     public byte[] pack() {
-	
-	ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-	byteStream.write(this.srcPort);
-	byteStream.write(this.destPort);
-	byteStream.write(this.type);
-	
-	// write 4 bytes for window size
-	byte[] windowByteArray = (BigInteger.valueOf(this.window)).toByteArray();
-	int paddingLength = 4 - windowByteArray.length;
-	for(int i = 0; i < paddingLength; i++) {
-	    byteStream.write(0);
-	}
-	byteStream.write(windowByteArray, 0, Math.min(windowByteArray.length, 4));
+	byte[] packet = new byte[this.getPackedSize()];
+	this.pack(packet, 0);
+	return packet;
+    }
 
-	// write 4 bytes for sequence number
-	byte[] seqByteArray = (BigInteger.valueOf(this.seqNum)).toByteArray();
-	paddingLength = 4 - seqByteArray.length;
-	for(int i = 0; i < paddingLength; i++) {
-	    byteStream.write(0);
+    /**
+     * Write the transport packet into a caller supplied array, in the format used by pack()
+     * @param buf The array to write into. Must have getPackedSize() bytes free from offset
+     * @param offset The index at which to write the first byte of the transport packet
+     * @return The number of bytes written
+     */
+    public int pack(byte[] buf, int offset) {
+	int size = this.getPackedSize();
+	int portSize = Transport.portSize();
+	int typeOffset = offset + 2 * portSize;
+	int type = (this.sackBlocks == null) ? this.type : (this.type | OPTIONS_FLAG);
+	Utility.putUnsigned(buf, offset, portSize, this.srcPort);
+	Utility.putUnsigned(buf, offset + portSize, portSize, this.destPort);
+	Utility.putInt(buf, typeOffset + 1, this.window);
+	Utility.putInt(buf, typeOffset + 5, this.seqNum);
+	if(size <= MAX_PACKET_SIZE) {
+	    buf[typeOffset] = (byte)type;
+	    buf[typeOffset + 9] = (byte)size;
+	}else {
+	    buf[typeOffset] = (byte)((WIDE_VERSION << 4) | type);
+	    buf[typeOffset + 9] = (byte)(size >>> 8);
+	    buf[typeOffset + 10] = (byte)size;
 	}
-	byteStream.write(seqByteArray, 0, Math.min(seqByteArray.length, 4));
-
-	byteStream.write(HEADER_SIZE + this.payload.length);	
-	byteStream.write(this.payload, 0, this.payload.length);
+	if(this.sackBlocks != null) {
+	    int optionsOffset = offset + size - this.payloadLength - this.optionsSize();
+	    buf[optionsOffset] = (byte)(this.optionsSize() - 1);
+	    buf[optionsOffset + 1] = (byte)SACK_OPTION;
+	    buf[optionsOffset + 2] = (byte)(this.optionsSize() - 1);
+	    for(int i = 0; i < this.sackBlocks.length; i++) {
+		Utility.putInt(buf, optionsOffset + 3 + 4 * i, this.sackBlocks[i]);
+	    }
+	}
+	System.arraycopy(this.payload, this.payloadOffset, buf, offset + size - this.payloadLength, this.payloadLength);
+	return size;
+    }
 
-	return byteStream.toByteArray();
+    /**
+     * Write the transport packet at the position of a caller supplied buffer, in the format used by pack().
+     * The buffer's position is advanced past the transport packet
+     * @param buf The buffer to write into. Must have getPackedSize() bytes remaining
+     */
+    public void pack(ByteBuffer buf) {
+	int size = this.getPackedSize();
+	int type = (this.sackBlocks == null) ? this.type : (this.type | OPTIONS_FLAG);
+	Utility.putUnsigned(buf, Transport.portSize(), this.srcPort);
+	Utility.putUnsigned(buf, Transport.portSize(), this.destPort);
+	buf.put((byte)((size <= MAX_PACKET_SIZE) ? type : (WIDE_VERSION << 4) | type));
+	Utility.putInt(buf, this.window);
+	Utility.putInt(buf, this.seqNum);
+	if(size > MAX_PACKET_SIZE) {
+	    buf.put((byte)(size >>> 8));
+	}
+	buf.put((byte)size);
+	if(this.sackBlocks != null) {
+	    buf.put((byte)(this.optionsSize() - 1));
+	    buf.put((byte)SACK_OPTION);
+	    buf.put((byte)(this.optionsSize() - 1));
+	    for(int i = 0; i < this.sackBlocks.length; i++) {
+		Utility.putInt(buf, this.sackBlocks[i]);
+	    }
+	}
+	buf.put(this.payload, this.payloadOffset, this.payloadLength);
     }
 
     /**
@@ -143,38 +350,145 @@ public class Transport {
      * @return Transport object created or null if the byte[] representation was corrupted
      */
     public static Transport unpack(byte[] packet) {
-	ByteArrayInputStream byteStream = new ByteArrayInputStream(packet);
-
-	int srcPort = byteStream.read();
-	int destPort = byteStream.read();
-	int type = byteStream.read();
-	
-	byte[] windowByteArray = new byte[4];
-	if(byteStream.read(windowByteArray, 0, 4) != 4) {
+	return Transport.unpack(packet, 0, packet.length);
+    }
+
+    /**
+     * Unpacks a transport packet held in part of a byte array. Bytes after the packet length
+     * given in its header are ignored
+     * @param buf The array holding the transport packet
+     * @param offset The index of the first byte of the transport packet
+     * @param length The number of bytes available from offset
+     * @return Transport object created or null if the bytes were corrupted
+     */
+    public static Transport unpack(byte[] buf, int offset, int length) {
+	return Transport.parse(buf, offset, length, true);
+    }
+
+    /**
+     * Parses a transport packet held in part of a byte array without copying its payload. The payload
+     * is a view into buf, so buf must not be modified while the transport packet is in use
+     * @param buf The array holding the transport packet
+     * @param offset The index of the first byte of the transport packet
+     * @param length The number of bytes available from offset
+     * @return Transport object created or null if the bytes were corrupted
+     */
+    public static Transport view(byte[] buf, int offset, int length) {
+	return Transport.parse(buf, offset, length, false);
+    }
+
+    /**
+     * Unpacks the transport packet at the position of a buffer. On success the buffer's position is
+     * advanced past the transport packet
+     * @param buf The buffer holding the transport packet
+     * @return Transport object created or null if the bytes were corrupted
+     */
+    public static Transport unpack(ByteBuffer buf) {
+	int start = buf.position();
+	byte[] packet = new byte[buf.remaining()];
+	buf.get(packet);
+	Transport transport = Transport.view(packet, 0, packet.length);
+	buf.position((transport == null) ? start : start + transport.getPackedSize());
+	return transport;
+    }
+
+    private static Transport parse(byte[] buf, int offset, int length, boolean copy) {
+	if(length < Transport.headerSize(1)) {
 	    return null;
 	}
-	int window = (new BigInteger(windowByteArray)).intValue();
-
-	byte[] seqByteArray = new byte[4];
-	if(byteStream.read(seqByteArray, 0, 4) != 4) {
+	int portSize = Transport.portSize();
+	int typeOffset = offset + 2 * portSize;
+	int version = (buf[typeOffset] & 0xff) >>> 4;
+	int lengthSize;
+	if(version == 0) {
+	    lengthSize = 1;
+	}else if(version == WIDE_VERSION) {
+	    lengthSize = 2;
+	}else {
 	    return null;
 	}
-	int seqNum = (new BigInteger(seqByteArray)).intValue();
-
-	int packetLength = byteStream.read();
-
-	byte[] payload = new byte[packetLength - HEADER_SIZE];
-	int bytesRead = Math.max(0, byteStream.read(payload, 0, payload.length));
-	
-	if((HEADER_SIZE + bytesRead) != packetLength) {
+	int headerSize = Transport.headerSize(lengthSize);
+	if(length < headerSize) {
+	    return null;
+	}
+	int packetLength = Utility.getUnsigned(buf, typeOffset + 9, lengthSize);
+	// Each size of transport packet has exactly one header version
+	if(packetLength < headerSize || packetLength > length ||
+	   Transport.packedSize(packetLength - headerSize) != packetLength) {
 	    return null;
 	}
+	int srcPort = Utility.getUnsigned(buf, offset, portSize);
+	int destPort = Utility.getUnsigned(buf, offset + portSize, portSize);
+	int type = buf[typeOffset] & 0x0f & ~OPTIONS_FLAG;
+	int window = Utility.getInt(buf, typeOffset + 1);
+	int seqNum = Utility.getInt(buf, typeOffset + 5);
 
 	try {
-	    return new Transport(srcPort, destPort, type, window, seqNum, payload);
+	    int[] sackBlocks = null;
+	    if((buf[typeOffset] & OPTIONS_FLAG) != 0) {
+		if(packetLength == headerSize) {
+		    return null;
+		}
+		int optionsLength = buf[offset + headerSize] & 0xff;
+		if(headerSize + 1 + optionsLength > packetLength) {
+		    return null;
+		}
+		sackBlocks = Transport.parseSackBlocks(buf, offset + headerSize + 1, optionsLength);
+		headerSize += 1 + optionsLength;
+	    }
+	    Transport transport;
+	    if(copy) {
+		transport = new Transport(srcPort, destPort, type, window, seqNum, Arrays.copyOfRange(buf, offset + headerSize, offset + packetLength));
+	    }else {
+		transport = new Transport(srcPort, destPort, type, window, seqNum, buf, offset + headerSize, packetLength - headerSize);
+	    }
+	    transport.setSackBlocks(sackBlocks);
+	    return transport;
 	}catch(IllegalArgumentException e) {
 	    // will return null
 	}
 	return null;
     }
+
+    // Returns the SACK blocks in the options held in buf, or null if there are none. Options of other
+    // kinds are skipped. Throws IllegalArgumentException if the options are corrupted
+    private static int[] parseSackBlocks(byte[] buf, int offset, int length) throws IllegalArgumentException {
+	int[] sackBlocks = null;
+	int end = offset + length;
+	while(offset < end) {
+	    if(offset + 2 > end) {
+		throw new IllegalArgumentException("Truncated option");
+	    }
+	    int kind = buf[offset] & 0xff;
+	    int optionLength = buf[offset + 1] & 0xff;
+	    if(optionLength < 2 || offset + optionLength > end) {
+		throw new IllegalArgumentException("Illegal option length");
+	    }
+	    if(kind == SACK_OPTION) {
+		if((optionLength - 2) % 8 != 0) {
+		    throw new IllegalArgumentException("Illegal SACK option length");
+		}
+		sackBlocks = new int[(optionLength - 2) / 4];
+		for(int i = 0; i < sackBlocks.length; i++) {
+		    sackBlocks[i] = Utility.getInt(buf, offset + 2 + 4 * i);
+		}
+	    }
+	    offset += optionLength;
+	}
+	return sackBlocks;
+    }
+
+    // Size of the option area, including its length byte
+    private int optionsSize() {
+	return (this.sackBlocks == null) ? 0 : 3 + 4 * this.sackBlocks.length;
+    }
+
+    private static int portSize() {
+	return Packet.hasWideAddresses() ? 2 : 1;
+    }
+
+    // Size of the header with a length field of lengthSize bytes
+    private static int headerSize(int lengthSize) {
+	return 2 * Transport.portSize() + lengthSize + 9;
+    }
 }
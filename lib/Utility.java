@@ -1,4 +1,5 @@
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 
 /**
  * <pre>   
@@ -44,4 +45,92 @@ public class Utility {
 	return null;
     }
 
+    /**
+     * Write an int into a byte[] as 4 bytes, most significant byte first
+     * @param buf The array to write into
+     * @param offset The index of the first byte to write
+     * @param value The int to write
+     */
+    public static void putInt(byte[] buf, int offset, int value) {
+	buf[offset] = (byte)(value >>> 24);
+	buf[offset + 1] = (byte)(value >>> 16);
+	buf[offset + 2] = (byte)(value >>> 8);
+	buf[offset + 3] = (byte)value;
+    }
+
+    /**
+     * Write an int at the position of a ByteBuffer as 4 bytes, most significant byte first,
+     * regardless of the buffer's byte order
+     * @param buf The buffer to write into
+     * @param value The int to write
+     */
+    public static void putInt(ByteBuffer buf, int value) {
+	buf.put((byte)(value >>> 24));
+	buf.put((byte)(value >>> 16));
+	buf.put((byte)(value >>> 8));
+	buf.put((byte)value);
+    }
+
+    /**
+     * Read an int stored as 4 bytes, most significant byte first
+     * @param buf The array to read from
+     * @param offset The index of the first byte to read
+     * @return The int read
+     */
+    public static int getInt(byte[] buf, int offset) {
+	return (buf[offset] << 24) | ((buf[offset + 1] & 0xff) << 16) |
+	    ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    /**
+     * Read an int stored as 4 bytes, most significant byte first, at the position of a ByteBuffer,
+     * regardless of the buffer's byte order
+     * @param buf The buffer to read from
+     * @return The int read
+     */
+    public static int getInt(ByteBuffer buf) {
+	return (buf.get() << 24) | ((buf.get() & 0xff) << 16) |
+	    ((buf.get() & 0xff) << 8) | (buf.get() & 0xff);
+    }
+
+    /**
+     * Write the low size bytes of an int into a byte[], most significant byte first
+     * @param buf The array to write into
+     * @param offset The index of the first byte to write
+     * @param size The number of bytes to write, at most 4
+     * @param value The int to write
+     */
+    public static void putUnsigned(byte[] buf, int offset, int size, int value) {
+	for(int i = size - 1; i >= 0; i--) {
+	    buf[offset + i] = (byte)value;
+	    value >>>= 8;
+	}
+    }
+
+    /**
+     * Write the low size bytes of an int at the position of a ByteBuffer, most significant byte first
+     * @param buf The buffer to write into
+     * @param size The number of bytes to write, at most 4
+     * @param value The int to write
+     */
+    public static void putUnsigned(ByteBuffer buf, int size, int value) {
+	for(int shift = 8 * (size - 1); shift >= 0; shift -= 8) {
+	    buf.put((byte)(value >>> shift));
+	}
+    }
+
+    /**
+     * Read an unsigned value stored in size bytes, most significant byte first
+     * @param buf The array to read from
+     * @param offset The index of the first byte to read
+     * @param size The number of bytes to read, at most 3
+     * @return The value read
+     */
+    public static int getUnsigned(byte[] buf, int offset, int size) {
+	int value = 0;
+	for(int i = 0; i < size; i++) {
+	    value = (value << 8) | (buf[offset + i] & 0xff);
+	}
+	return value;
+    }
 }
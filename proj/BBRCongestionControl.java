@@ -0,0 +1,147 @@
+// BBR-style model-based congestion control. It estimates the bottleneck
+// bandwidth, the most delivered per round trip over the last rounds, and the
+// min RTT, and sizes the window to a multiple of their product rather than
+// reacting to losses. There is no pacing, so the window alone carries the
+// gains:
+//   STARTUP grows the window by what is ACKed until the bandwidth stops
+//   growing by a quarter for 3 rounds;
+//   DRAIN shrinks it to the estimated BDP until what is in flight fits;
+//   PROBE_BW cycles the gain, a round above 1 to probe for more bandwidth,
+//   then a round below to drain the queue that made, then rounds at 1.
+public class BBRCongestionControl implements CongestionControl {
+    private enum State {
+        STARTUP,
+        DRAIN,
+        PROBE_BW
+    }
+
+    private static final double CWND_GAIN = 2;
+    private static final double[] PROBE_GAINS =
+        { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+    private static final int BANDWIDTH_ROUNDS = 10; // Window of the max filter.
+    private static final long MIN_RTT_EXPIRY = 10000; // ms
+    private static final int MIN_WINDOW_SEGMENTS = 4;
+
+    private int mss;
+    private int window;
+    private State state = State.STARTUP;
+
+    // Rounds: a round ends once what was in flight at its start is ACKed.
+    private long roundStart = -1;
+    private int roundTarget;
+    private int roundDelivered;
+
+    // Bandwidth in bytes/ms of the last rounds, and their max.
+    private double[] bandwidths = new double[BANDWIDTH_ROUNDS];
+    private int round = 0;
+    private double maxBandwidth = 0;
+
+    private int minRTT = -1;
+    private long minRTTTime;
+
+    // Bandwidth when STARTUP last saw it grow, and rounds since.
+    private double fullBandwidth = 0;
+    private int fullBandwidthRounds = 0;
+    private int probeCycle = 0;
+
+    public BBRCongestionControl(int mss) {
+        this.mss = mss;
+        window = MIN_WINDOW_SEGMENTS * mss;
+    }
+
+    public int getWindow() { return window; }
+
+    public void onACK(int ackedBytes, int inFlight, long now) {
+        if (roundStart < 0) startRound(inFlight + ackedBytes, now);
+
+        roundDelivered += ackedBytes;
+        if (roundDelivered >= roundTarget) {
+            if (now > roundStart) {
+                endRound((double)roundDelivered / (now - roundStart));
+            }
+            startRound(inFlight, now);
+        }
+
+        if (state == State.DRAIN && inFlight <= getBDP()) {
+            state = State.PROBE_BW;
+            probeCycle = 0;
+        }
+
+        int target = getTargetWindow();
+        if (state == State.STARTUP) {
+            window += ackedBytes;
+        } else {
+            window = Math.min(window + ackedBytes, target);
+        }
+        window = Math.max(window, MIN_WINDOW_SEGMENTS * mss);
+    }
+
+    // Losses are not a sign of congestion to the model, and data ACKed in
+    // fast recovery is delivered like any other.
+    public void onDuplicateACK(long now) {}
+    public void onLoss(int inFlight, long now) {}
+    public void onPartialACK(int ackedBytes, int inFlight, long now) {
+        onACK(ackedBytes, inFlight, now);
+    }
+    public void onRecoveryEnd(int ackedBytes, int inFlight, long now) {
+        onACK(ackedBytes, inFlight, now);
+    }
+
+    // Everything in flight is presumed lost, so start again from the
+    // smallest window and let the ACKs grow it back to the target.
+    public void onTimeout(int inFlight, long now) {
+        window = MIN_WINDOW_SEGMENTS * mss;
+        roundStart = -1;
+    }
+
+    public void onRTTSample(int rtt, long now) {
+        if (minRTT < 0 || rtt <= minRTT || now - minRTTTime > MIN_RTT_EXPIRY) {
+            minRTT = rtt;
+            minRTTTime = now;
+        }
+    }
+
+    private void startRound(int inFlight, long now) {
+        roundStart = now;
+        roundTarget = Math.max(inFlight, mss);
+        roundDelivered = 0;
+    }
+
+    private void endRound(double bandwidth) {
+        bandwidths[round % BANDWIDTH_ROUNDS] = bandwidth;
+        round++;
+        maxBandwidth = 0;
+        for (double b : bandwidths) maxBandwidth = Math.max(maxBandwidth, b);
+
+        switch (state) {
+        case STARTUP:
+            if (maxBandwidth >= 1.25 * fullBandwidth) {
+                fullBandwidth = maxBandwidth;
+                fullBandwidthRounds = 0;
+            } else if (++fullBandwidthRounds >= 3) {
+                state = State.DRAIN;
+            }
+            break;
+        case PROBE_BW:
+            probeCycle = (probeCycle + 1) % PROBE_GAINS.length;
+            break;
+        }
+    }
+
+    // @return The bandwidth-delay product in bytes, or Integer.MAX_VALUE
+    //         before there is an estimate.
+    private int getBDP() {
+        if (minRTT < 0 || maxBandwidth == 0) return Integer.MAX_VALUE;
+        return (int)Math.min(Integer.MAX_VALUE, maxBandwidth * Math.max(minRTT, 1));
+    }
+
+    private int getTargetWindow() {
+        int bdp = getBDP();
+        if (bdp == Integer.MAX_VALUE) return bdp;
+
+        double gain = 1;
+        if (state == State.STARTUP) gain = CWND_GAIN;
+        if (state == State.PROBE_BW) gain = CWND_GAIN * PROBE_GAINS[probeCycle];
+        return (int)Math.min(Integer.MAX_VALUE, gain * bdp);
+    }
+}
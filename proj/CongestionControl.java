@@ -0,0 +1,49 @@
+import java.io.Serializable;
+
+// Congestion control of a TCPSockClient: decides the congestion window from
+// the ACKs, losses and RTT samples of the connection. The algorithm is set
+// per socket with TCPSock.setCongestionControl.
+public interface CongestionControl extends Serializable {
+    public enum Algorithm {
+        RENO,
+        CUBIC,
+        BBR;
+
+        public CongestionControl create(int mss) {
+            switch (this) {
+            case CUBIC: return new CubicCongestionControl(mss);
+            case BBR: return new BBRCongestionControl(mss);
+            default: return new RenoCongestionControl(mss);
+            }
+        }
+    }
+
+    // @return The congestion window in bytes.
+    int getWindow();
+
+    // An ACK for new data outside fast recovery: ackedBytes were ACKed, and
+    // inFlight bytes are still unACKed. now is the time in ms.
+    void onACK(int ackedBytes, int inFlight, long now);
+
+    // A duplicate ACK, while data is unACKed.
+    void onDuplicateACK(long now);
+
+    // A loss was detected by duplicate ACKs, with inFlight bytes unACKed,
+    // and fast retransmit has resent. Fast recovery starts.
+    void onLoss(int inFlight, long now);
+
+    // An ACK in fast recovery for some, not all, of the data that was in
+    // flight at the loss. The next hole has been resent.
+    void onPartialACK(int ackedBytes, int inFlight, long now);
+
+    // An ACK for all the data that was in flight at the loss, which ends
+    // fast recovery.
+    void onRecoveryEnd(int ackedBytes, int inFlight, long now);
+
+    // The retransmission timer expired with inFlight bytes unACKed. It also
+    // ends fast recovery.
+    void onTimeout(int inFlight, long now);
+
+    // The RTT in ms of a segment ACKed that was not resent.
+    void onRTTSample(int rtt, long now);
+}
@@ -0,0 +1,67 @@
+// CUBIC congestion control (RFC 8312). After a loss the window grows along
+// a cubic of the time since it, which is flat around the window the loss
+// happened at and steep away from it, so the growth does not depend on the
+// RTT. It never grows slower than Reno would.
+public class CubicCongestionControl extends LossBasedCongestionControl {
+    private static final double C = 0.4; // Scaling of the cubic, in MSS/s^3.
+    private static final double BETA = 0.7; // Window kept after a loss.
+
+    private long epochStart = -1; // Time the cubic starts, -1 for the next ACK.
+    private double maxWindow = 0; // In bytes, at the last loss.
+    private double origin; // In bytes, the plateau of the cubic.
+    private double k; // In s, the time to reach origin.
+    private double renoWindow; // In bytes, what Reno would have.
+    private int minRTT = -1;
+
+    public CubicCongestionControl(int mss) {
+        super(mss);
+    }
+
+    protected void increase(int ackedBytes, long now) {
+        if (epochStart < 0) {
+            epochStart = now;
+            if (window < maxWindow) {
+                k = Math.cbrt((maxWindow - window) / mss / C);
+                origin = maxWindow;
+            } else {
+                k = 0;
+                origin = window;
+            }
+            renoWindow = window;
+        }
+
+        // Aim for the cubic's window one RTT ahead, at most 1.5 times the
+        // current window.
+        double t = (now - epochStart + Math.max(minRTT, 0)) / 1000.0;
+        double target = origin + C * Math.pow(t - k, 3) * mss;
+        target = Math.min(target, 1.5 * window);
+
+        double increase;
+        if (target > window) {
+            increase = (target - window) * ackedBytes / window;
+        } else {
+            increase = (double)mss * ackedBytes / (100.0 * window);
+        }
+
+        // Reno's growth with a decrease of BETA.
+        renoWindow += 3 * (1 - BETA) / (1 + BETA) * mss * ackedBytes / window;
+
+        window = (int)Math.max(window + increase, renoWindow);
+    }
+
+    protected int decrease(int inFlight, long now) {
+        // Fast convergence: give up bandwidth to newer flows, if the loss
+        // came before the last maximum was reached.
+        if (window < maxWindow) {
+            maxWindow = window * (1 + BETA) / 2;
+        } else {
+            maxWindow = window;
+        }
+        epochStart = -1;
+        return Math.max((int)(window * BETA), 2 * mss);
+    }
+
+    public void onRTTSample(int rtt, long now) {
+        if (minRTT < 0 || rtt < minRTT) minRTT = rtt;
+    }
+}
@@ -9,12 +9,12 @@
  * @version 1.0
  */
 
-import java.lang.reflect.Method;
+import java.io.Serializable;
 
 /**
  * <p> A utility class for multi-threading in Fishnet </p>
  */
-public class FishThread {
+public class FishThread implements Serializable {
     protected Manager manager;
     protected Node node;
     protected int addr;
@@ -30,9 +30,14 @@ public class FishThread {
     public static final long DEFAULT_INTERVAL = 1000;
 
     /**
-     * The callback used to schedule task execution
+     * The task executed by this thread, if it was given one
      */
-    private Callback cb;
+    private Task task;
+
+    /**
+     * The pending timer for the next execution, reused for every execution
+     */
+    private TimerHandle timer;
 
     /**
      * Create a thread in a Fishnet node
@@ -46,15 +51,19 @@ public class FishThread {
         this.node = node;
         this.addr = node.getAddr();
         this.interval = interval;
+    }
 
-        try {
-            Method method = Callback.getMethod("run", this, null);
-            this.cb = new Callback(method, this, null);
-        } catch (Exception e) {
-            // This should not happen
-            this.node.logError("failed to initialize a FishThread");
-            System.exit(1);
-        }
+    /**
+     * Create a thread in a Fishnet node that periodically runs the given task
+     *
+     * @param manager Manager The Fishnet manager
+     * @param node Node The node that is creating this thread
+     * @param interval long The task execution interval
+     * @param task Task The task to execute, such as a lambda
+     */
+    public FishThread(Manager manager, Node node, long interval, Task task) {
+        this(manager, node, interval);
+        this.task = task;
     }
 
     /**
@@ -94,12 +103,12 @@ public class FishThread {
     }
 
     /**
-     * The task that is peroidically executed by this thread. This method does
-     * nothing and returns. Subclasses should override this method to perform
-     * their tasks.
+     * The task that is peroidically executed by this thread. This method runs
+     * the task given to the constructor, if any. Subclasses should override
+     * this method to perform their tasks.
      */
     public void execute() {
-
+        if (this.task != null) this.task.run();
     }
 
     /**
@@ -107,6 +116,7 @@ public class FishThread {
      */
     public void stop() {
         this.interval = 0;
+        if (this.timer != null) this.timer.cancel();
     }
 
     /**
@@ -124,6 +134,10 @@ public class FishThread {
         // no more execution if interval <= 0
         if (this.interval <= 0) return;
 
-        this.manager.addTimer(this.addr, this.interval, this.cb);
+        if (this.timer == null) {
+            this.timer = this.manager.addTimer(this.addr, this.interval, this::run);
+        } else {
+            this.timer.reschedule(this.interval);
+        }
     }
 }
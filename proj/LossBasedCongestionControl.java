@@ -0,0 +1,64 @@
+// Window management shared by the congestion controls that back off on
+// losses (RFC 5681, with NewReno fast recovery from RFC 6582):
+//   slow start grows the window by what is ACKed, up to 2 MSS per ACK
+//   (RFC 3465), until it reaches ssthresh;
+//   congestion avoidance above it is left to the subclass;
+//   on a loss, ssthresh is lowered and the window set to it plus the 3
+//   segments the duplicate ACKs showed have left, then inflated by one MSS
+//   for each further duplicate ACK. Partial ACKs deflate it by what they
+//   ACK, and the ACK that ends recovery deflates it to ssthresh;
+//   on a timeout, ssthresh is lowered and the window set to one MSS.
+public abstract class LossBasedCongestionControl implements CongestionControl {
+    protected int mss;
+    protected int window;
+    protected int ssthresh = Integer.MAX_VALUE;
+    private boolean recovering = false;
+
+    public LossBasedCongestionControl(int mss) {
+        this.mss = mss;
+        // Initial window of RFC 5681.
+        window = (mss > 2190) ? 2 * mss : (mss > 1095) ? 3 * mss : 4 * mss;
+    }
+
+    public int getWindow() { return window; }
+
+    public void onACK(int ackedBytes, int inFlight, long now) {
+        if (window < ssthresh) {
+            window += Math.min(ackedBytes, 2 * mss);
+        } else {
+            increase(ackedBytes, now);
+        }
+    }
+
+    public void onDuplicateACK(long now) {
+        if (recovering) window += mss;
+    }
+
+    public void onLoss(int inFlight, long now) {
+        ssthresh = decrease(inFlight, now);
+        window = ssthresh + 3 * mss;
+        recovering = true;
+    }
+    public void onPartialACK(int ackedBytes, int inFlight, long now) {
+        // The segment resent for the partial ACK is in flight again.
+        window = Math.max(mss, window - ackedBytes + mss);
+    }
+    public void onRecoveryEnd(int ackedBytes, int inFlight, long now) {
+        window = Math.min(ssthresh, Math.max(inFlight, mss) + mss);
+        recovering = false;
+    }
+
+    public void onTimeout(int inFlight, long now) {
+        ssthresh = decrease(inFlight, now);
+        window = mss;
+        recovering = false;
+    }
+
+    public void onRTTSample(int rtt, long now) {}
+
+    // Grows the window in congestion avoidance, for ackedBytes ACKed.
+    protected abstract void increase(int ackedBytes, long now);
+
+    // @return The ssthresh after a loss with inFlight bytes unACKed.
+    protected abstract int decrease(int inFlight, long now);
+}
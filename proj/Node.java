@@ -1,7 +1,9 @@
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.io.PrintStream;
-import java.lang.reflect.Method;
+import java.io.Serializable;
 
 /**
  * <pre>
@@ -21,14 +23,33 @@ import java.lang.reflect.Method;
  *
  * This code must be written as a state machine -- each upcall must do its work and return so that
  * other upcalls can be delivered
+ *
+ * Nodes are saved in simulation checkpoints, so all per-node state must be Serializable
+ *
+ * Packets larger than the MTU of the link they are sent on are split into fragments,
+ * which the destination reassembles. A fragment carries
+ * FRAGMENT | [MORE_FRAGMENTS] | id << 16 | offset of its payload in the packet
+ * in its seq field, which is 0 for packets that are not fragmented
  * </pre>
  */
-public class Node {
+public class Node implements Serializable {
     private final long PingTimeout = 10000;  // Timeout pings in 10 seconds
 
+    private static final int FRAGMENT = 1 << 31;
+    private static final int MORE_FRAGMENTS = 1 << 30;
+    private static final int MAX_FRAGMENT_ID = (1 << 14) - 1;
+    private static final int MAX_REASSEMBLIES = 64;  // packets being reassembled at once
+    private static final long ReassemblyTimeout = 10000;  // Drop incomplete packets after 10 seconds
+
     private Manager manager;
     private int addr;
     private ArrayList pings; // To store PingRequests.
+    private TimerHandle pingTimer; // Only pending while there are outstanding pings
+
+    // Fragmentation
+    private int nextFragmentId;
+    // Packets being reassembled, keyed by source and fragment id, oldest first
+    private LinkedHashMap<Integer, Reassembly> reassemblies;
 
     // Fishnet reliable data transfer
     // TCP manager
@@ -43,6 +64,8 @@ public class Node {
     	this.manager = manager;
     	this.addr = addr;
     	this.pings = new ArrayList();
+    	this.nextFragmentId = 0;
+    	this.reassemblies = new LinkedHashMap<Integer, Reassembly>();
 
         // Fishnet reliable data transfer
         this.tcpMan = new TCPManager(this, addr, manager);
@@ -55,7 +78,6 @@ public class Node {
      */
     public void start() {
     	logOutput("started");
-    	this.addTimer(PingTimeout, "pingTimedOut");
 
         // Fishnet reliable data transfer
         // Start TCP manager
@@ -65,16 +87,33 @@ public class Node {
     /**
      * Called by the manager when a packet has arrived for this node
      * @param from The address of the node that has sent this packet
-     * @param msg The serialized form of the packet.
+     * @param msg The serialized form of the packet. It is parsed in place, so the manager must not reuse it
      */
     public void onReceive(Integer from, byte[] msg) {
-    	Packet packet = Packet.unpack(msg);
-    	//logOutput("received packet from " + from);
+    	Packet packet = Packet.view(msg, 0, msg.length);
     	if (packet == null) {
     	    logError("Unable to unpack message: " + Utility.byteArrayToString(msg) + " Received from " + from);
     	    return;
     	}
 
+    	this.onReceive(from, packet);
+    }
+
+    /**
+     * Called by the manager when a packet has arrived for this node.
+     * The simulator delivers the packet that was sent, without serializing it, so it may be shared
+     * with the sender and with other receivers and must not be modified
+     * @param from The address of the node that has sent this packet
+     * @param packet The packet.
+     */
+    public void onReceive(Integer from, Packet packet) {
+    	//logOutput("received packet from " + from);
+    	if ((packet.getSeq() & FRAGMENT) != 0) {
+    	    packet = this.reassemble(packet);
+    	    if (packet == null) {
+    		return;
+    	    }
+    	}
     	this.receivePacket(from.intValue(), packet);
     }
 
@@ -109,7 +148,9 @@ public class Node {
 		}
 	    }
 	}
-	this.addTimer(PingTimeout, "pingTimedOut");
+	if(!this.pings.isEmpty()) {
+	    this.pingTimer.reschedule(PingTimeout);
+	}
     }
 
     private boolean matchPingCommand(String command) {
@@ -125,6 +166,11 @@ public class Node {
 
 	    this.send(destAddr, packet);
 	    this.pings.add(new PingRequest(destAddr, Utility.stringToByteArray(message), this.manager.now()));
+	    if(this.pingTimer == null) {
+		this.pingTimer = this.addTimer(PingTimeout, this::pingTimedOut);
+	    }else if(!this.pingTimer.isPending()) {
+		this.pingTimer.reschedule(PingTimeout);
+	    }
 	    return true;
 	}catch(Exception e) {
 	    logError("Exception: " + e);
@@ -187,7 +233,11 @@ public class Node {
     private void receiveTCP(int srcAddr, Packet packet) {
         int destAddr = packet.getDest();
 
-        Transport transport = Transport.unpack(packet.getPayload());
+        Transport transport = packet.getTransport();
+        if (transport == null) {
+            logError("Unable to unpack transport packet received from " + srcAddr);
+            return;
+        }
         int srcPort = transport.getSrcPort();
         int destPort = transport.getDestPort();
 
@@ -196,22 +246,84 @@ public class Node {
 
     private void send(int destAddr, Packet packet) {
     	try {
-    	    this.manager.sendPkt(this.addr, destAddr, packet.pack());
+    	    int mtu = this.manager.getMTU(this.addr, destAddr);
+    	    if (packet.getPackedSize() <= mtu) {
+    		this.manager.sendPkt(this.addr, destAddr, packet);
+    	    } else {
+    		this.sendFragments(destAddr, packet, mtu);
+    	    }
     	} catch(IllegalArgumentException e) {
     	    logError("Exception: " + e);
     	}
     }
 
-    // Adds a timer, to fire in deltaT milliseconds, with a callback to a public function of this class that takes no parameters
-    private void addTimer(long deltaT, String methodName) {
+    // Splits a packet that is too large for the link into fragments of at most mtu bytes
+    private void sendFragments(int destAddr, Packet packet, int mtu) {
+    	byte[] payload = packet.getPayload();
+    	int fragmentSize = Packet.maxPayloadSize(mtu);
+    	int id = this.nextFragmentId;
+    	this.nextFragmentId = (id + 1) & MAX_FRAGMENT_ID;
+
+    	for (int offset = 0; offset < payload.length; offset += fragmentSize) {
+    	    int end = Math.min(offset + fragmentSize, payload.length);
+    	    int seq = FRAGMENT | (id << 16) | offset;
+    	    if (end < payload.length) {
+    		seq |= MORE_FRAGMENTS;
+    	    }
+    	    Packet fragment = new Packet(packet.getDest(), packet.getSrc(), packet.getTTL(), packet.getProtocol(), seq,
+    					 Arrays.copyOfRange(payload, offset, end));
+    	    this.manager.sendPkt(this.addr, destAddr, fragment);
+    	}
+    	packet.release();  // the fragments hold copies of the payload
+    }
+
+    // Adds a fragment to the packet it belongs to. Returns the packet once all its fragments have arrived, else null
+    private Packet reassemble(Packet fragment) {
+    	long now = this.manager.now();
+
+    	// Drop packets that have timed out. They are kept in the order they were started in
+    	Iterator<Reassembly> iter = this.reassemblies.values().iterator();
+    	while (iter.hasNext() && iter.next().getTimeStarted() + ReassemblyTimeout < now) {
+    	    iter.remove();
+    	}
+
+    	int seq = fragment.getSeq();
+    	Integer key = Integer.valueOf((fragment.getSrc() << 14) | ((seq >>> 16) & MAX_FRAGMENT_ID));
+    	Reassembly reassembly = this.reassemblies.get(key);
+    	if (reassembly == null) {
+    	    if (this.reassemblies.size() == MAX_REASSEMBLIES) {
+    		// Make room by dropping the oldest packet
+    		Iterator<Integer> oldest = this.reassemblies.keySet().iterator();
+    		oldest.next();
+    		oldest.remove();
+    	    }
+    	    reassembly = new Reassembly(now);
+    	    this.reassemblies.put(key, reassembly);
+    	}
+
+    	if (!reassembly.add(seq & 0xffff, fragment.getPayloadArray(), fragment.getPayloadOffset(),
+    			    fragment.getPayloadLength(), (seq & MORE_FRAGMENTS) == 0)) {
+    	    logError("Dropping malformed fragmented packet from " + fragment.getSrc());
+    	    this.reassemblies.remove(key);
+    	    return null;
+    	}
+    	if (!reassembly.isComplete()) {
+    	    return null;
+    	}
+    	this.reassemblies.remove(key);
+
     	try {
-    	    Method method = Callback.getMethod(methodName, this, null);
-    	    Callback cb = new Callback(method, this, null);
-    	    this.manager.addTimer(this.addr, deltaT, cb);
-    	} catch(Exception e) {
-    	    logError("Failed to add timer callback. Method Name: " + methodName +
-    		     "\nException: " + e);
+    	    return new Packet(fragment.getDest(), fragment.getSrc(), fragment.getTTL(), fragment.getProtocol(), 0,
+    			      reassembly.getPayload());
+    	} catch(IllegalArgumentException e) {
+    	    logError("Exception while reassembling a packet from " + fragment.getSrc() + ". Exception: " + e);
     	}
+    	return null;
+    }
+
+    // Adds a timer, to fire in deltaT milliseconds, that runs the given task, e.g. this::pingTimedOut
+    private TimerHandle addTimer(long deltaT, Task task) {
+    	return this.manager.addTimer(this.addr, deltaT, task);
     }
 
     // Fishnet reliable data transfer
@@ -231,6 +343,19 @@ public class Node {
         this.send(destAddr, packet);
     }
 
+    /**
+     * Send a transport segment to the specified node without serializing it
+     * first. It is only serialized if it has to go over the wire
+     *
+     * @param srcAddr int Source node address
+     * @param destAddr int Destination node address
+     * @param transport Transport Segment to be sent
+     */
+    public void sendSegment(int srcAddr, int destAddr, Transport transport) {
+        Packet packet = new Packet(destAddr, srcAddr, Packet.MAX_TTL, 0, transport);
+        this.send(destAddr, packet);
+    }
+
     public int getAddr() {
         return this.addr;
     }
@@ -249,7 +374,7 @@ public class Node {
 
     private boolean matchTransferCommand(String command) {
         // transfer command syntax:
-        //     transfer dest port localPort amount [interval sz]
+        //     transfer dest port localPort amount [interval sz [mss [cc]]]
         // Synopsis:
         //     Connect to a transfer server listening on port <port> at node
         //     <dest>, using local port <localPort>, and transfer <amount> bytes.
@@ -259,10 +384,13 @@ public class Node {
         //     localPort: local port
         //     amount: number of bytes to transfer
         // Optional arguments:
-        //     interval: execution interval of the transfer client, default 1 second
+        //     interval: ignored, as the transfer client runs on socket events
         //     sz: buffer size of the transfer client, default 65536
+        //     mss: largest segment payload, default the largest that fits
+        //          the MTU of the link. Larger segments are fragmented
+        //     cc: congestion control, one of reno, cubic and bbr, default reno
         String[] args = command.split(" ");
-        if (args.length < 5 || args.length > 7 || !args[0].equals("transfer")) {
+        if (args.length < 5 || args.length > 9 || !args[0].equals("transfer")) {
             return false;
         }
 
@@ -271,20 +399,23 @@ public class Node {
             int port = Integer.parseInt(args[2]);
             int localPort = Integer.parseInt(args[3]);
             int amount = Integer.parseInt(args[4]);
-            long interval =
-                args.length >= 6 ?
-                Integer.parseInt(args[5]) :
-                TransferClient.DEFAULT_CLIENT_INTERVAL;
             int sz =
-               args.length == 7 ?
+               args.length >= 7 ?
                Integer.parseInt(args[6]) :
                TransferClient.DEFAULT_BUFFER_SZ;
 
             TCPSock sock = this.tcpMan.socket();
+            if (args.length >= 8) {
+                sock.setMaxSegmentSize(Integer.parseInt(args[7]));
+            }
+            if (args.length == 9) {
+                sock.setCongestionControl(CongestionControl.Algorithm.valueOf(
+                    args[8].toUpperCase()));
+            }
             sock.bind(localPort);
             sock.connect(destAddr, port);
             TransferClient client = new
-                TransferClient(manager, this, sock, amount, interval, sz);
+                TransferClient(manager, this, sock, amount, sz);
             client.start();
 
             return true;
@@ -298,7 +429,7 @@ public class Node {
 
     private boolean matchServerCommand(String command) {
         // server command syntax:
-        //     server port backlog [servint workint sz]
+        //     server port backlog [servint workint sz [ackdelay]]
         // Synopsis:
         //     Start a transfer server at the local node, listening on port
         //     <port>.  The server has a maximum pending (incoming) connection
@@ -307,35 +438,32 @@ public class Node {
         //     port: listening port
         //     backlog: maximum length of pending connection queue
         // Optional arguments:
-        //     servint: execution interval of the transfer server, default 1 second
-        //     workint: execution interval of the transfer worker, default 1 second
+        //     servint, workint: ignored, as the transfer server and its
+        //                       workers run on socket events
         //     sz: buffer size of the transfer worker, default 65536
+        //     ackdelay: longest time in ms that received data waits for its
+        //               ACK, default 40. 0 ACKs every segment at once
         String[] args = command.split(" ");
-        if (args.length < 3 || args.length > 6 || !args[0].equals("server")) {
+        if (args.length < 3 || args.length > 7 || !args[0].equals("server")) {
             return false;
         }
 
         try {
             int port = Integer.parseInt(args[1]);
             int backlog = Integer.parseInt(args[2]);
-            long servint =
-                args.length >= 4 ?
-                Integer.parseInt(args[3]) :
-                TransferServer.DEFAULT_SERVER_INTERVAL;
-            long workint =
-                args.length >= 5 ?
-                Integer.parseInt(args[4]) :
-                TransferServer.DEFAULT_WORKER_INTERVAL;
             int sz =
-                args.length == 6 ?
+                args.length >= 6 ?
                 Integer.parseInt(args[5]) :
                 TransferServer.DEFAULT_BUFFER_SZ;
             TCPSock sock = this.tcpMan.socket();
+            if (args.length == 7) {
+                sock.setAckDelay(Integer.parseInt(args[6]));
+            }
             sock.bind(port);
             sock.listen(backlog);
 
             TransferServer server = new
-               TransferServer(manager, this, sock, servint, workint, sz);
+               TransferServer(manager, this, sock, sz);
             server.start();
             logOutput("server started, port = " + port);
 
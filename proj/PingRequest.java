@@ -1,9 +1,11 @@
+import java.io.Serializable;
+
 /**
  * <pre>
  * Class that stores information about a Ping request that was sent
  * </pre>
  */
-public class PingRequest {
+public class PingRequest implements Serializable {
 
     private int destAddr;
     private byte[] msg;
@@ -0,0 +1,78 @@
+import java.io.Serializable;
+import java.util.Arrays;
+
+// Class that holds a set of sequence number ranges [start, end), kept
+// sorted and merged so that no two ranges overlap or touch. Used for the
+// out-of-order data a receiver reports in SACK blocks, and for the
+// scoreboard of SACKed data a sender keeps.
+public class RangeSet implements Serializable {
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int count = 0;
+
+    public int size() { return count; }
+    public boolean isEmpty() { return count == 0; }
+    public int getStart(int i) { return starts[i]; }
+    public int getEnd(int i) { return ends[i]; }
+    public void clear() { count = 0; }
+
+    // @return The end of the highest range, or -1 if the set is empty.
+    public int getMax() { return (count == 0) ? -1 : ends[count - 1]; }
+
+    // Adds the range [start, end), merging it with the ranges it overlaps
+    // or touches.
+    public void add(int start, int end) {
+        if (start >= end) return;
+
+        // First range that ends at or after start, which may merge.
+        int first = 0;
+        while (first < count && ends[first] < start) first++;
+        // One past the last range that starts at or before end.
+        int last = first;
+        while (last < count && starts[last] <= end) last++;
+
+        if (first < last) {
+            start = Math.min(start, starts[first]);
+            end = Math.max(end, ends[last - 1]);
+        } else if (count == starts.length) {
+            starts = Arrays.copyOf(starts, 2 * count);
+            ends = Arrays.copyOf(ends, 2 * count);
+        }
+
+        // Replace ranges first..last-1 with the merged one.
+        int shift = 1 - (last - first);
+        System.arraycopy(starts, last, starts, last + shift, count - last);
+        System.arraycopy(ends, last, ends, last + shift, count - last);
+        starts[first] = start;
+        ends[first] = end;
+        count += shift;
+    }
+
+    // Removes everything below seqNum.
+    public void removeBelow(int seqNum) {
+        int i = 0;
+        while (i < count && ends[i] <= seqNum) i++;
+        if (i > 0) {
+            System.arraycopy(starts, i, starts, 0, count - i);
+            System.arraycopy(ends, i, ends, 0, count - i);
+            count -= i;
+        }
+        if (count > 0 && starts[0] < seqNum) starts[0] = seqNum;
+    }
+
+    // @return Whether all of [start, end) is in the set.
+    public boolean contains(int start, int end) {
+        for (int i = 0; i < count && starts[i] <= start; i++) {
+            if (end <= ends[i]) return true;
+        }
+        return false;
+    }
+
+    // @return Index of the range holding seqNum, or -1 if there is none.
+    public int indexOf(int seqNum) {
+        for (int i = 0; i < count && starts[i] <= seqNum; i++) {
+            if (seqNum < ends[i]) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * <pre>
+ * Class that collects the fragments of a packet that was too large for the
+ * link it was sent on, until the whole packet has arrived
+ * </pre>
+ */
+public class Reassembly implements Serializable {
+
+    private long timeStarted;
+    private byte[] payload;
+    private BitSet received;  // bytes of the payload received so far
+    private int length;       // -1 until the last fragment has arrived
+
+    /**
+     * Initialize member variables
+     * @param timeStarted The time that the first fragment arrived
+     */
+    public Reassembly(long timeStarted) {
+        this.timeStarted = timeStarted;
+        this.payload = new byte[Packet.MAX_PAYLOAD_SIZE];
+        this.received = new BitSet();
+        this.length = -1;
+    }
+
+    /**
+     * @return The time that the first fragment arrived
+     */
+    public long getTimeStarted() {
+        return this.timeStarted;
+    }
+
+    /**
+     * Adds a fragment. Fragments may arrive in any order, and more than once
+     * @param offset The offset of the fragment in the payload of the packet
+     * @param buf The array holding the fragment
+     * @param bufOffset The index in buf of the first byte of the fragment
+     * @param fragmentLength The size of the fragment in bytes
+     * @param last True if this is the last fragment of the packet
+     * @return False if the fragment does not fit with the fragments received before
+     */
+    public boolean add(int offset, byte[] buf, int bufOffset, int fragmentLength, boolean last) {
+        int end = offset + fragmentLength;
+        if (end > Packet.MAX_WIDE_PAYLOAD_SIZE ||
+            (this.length >= 0 && end > this.length) ||
+            (last && (this.received.length() > end || (this.length >= 0 && this.length != end)))) {
+            return false;
+        }
+        if (end > this.payload.length) {
+            this.payload = Arrays.copyOf(this.payload, Math.max(end, 2 * this.payload.length));
+        }
+        System.arraycopy(buf, bufOffset, this.payload, offset, fragmentLength);
+        this.received.set(offset, end);
+        if (last) {
+            this.length = end;
+        }
+        return true;
+    }
+
+    /**
+     * @return True if all fragments of the packet have arrived
+     */
+    public boolean isComplete() {
+        return this.length >= 0 && this.received.nextClearBit(0) >= this.length;
+    }
+
+    /**
+     * @return The payload of the packet. Only valid once it is complete
+     */
+    public byte[] getPayload() {
+        return (this.payload.length == this.length) ? this.payload : Arrays.copyOf(this.payload, this.length);
+    }
+}
@@ -0,0 +1,15 @@
+// Reno congestion control: in congestion avoidance the window grows by one
+// MSS each RTT, and a loss halves what was in flight.
+public class RenoCongestionControl extends LossBasedCongestionControl {
+    public RenoCongestionControl(int mss) {
+        super(mss);
+    }
+
+    protected void increase(int ackedBytes, long now) {
+        window += Math.max(1, (int)((long)ackedBytes * mss / window));
+    }
+
+    protected int decrease(int inFlight, long now) {
+        return Math.max(inFlight / 2, 2 * mss);
+    }
+}
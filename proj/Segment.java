@@ -1,15 +1,14 @@
+import java.io.Serializable;
 import java.util.*;
 
 // Class that represents a message that is sent, including the
-// seqNum and payload.
-public class Segment implements Comparable<Segment> {
+// seqNum and payload. A sent segment holds a reference to the pooled
+// buffer of its payload until it is released.
+public class Segment implements Comparable<Segment>, Serializable {
     public static class Buffer extends PriorityQueue<Segment> {
         public void add(int seqNum, byte[] payload) {
             add(new Segment(seqNum, payload));
         }
-        public void add(int type, int seqNum, byte[] payload) {
-            add(new Segment(type, seqNum, payload));
-        }
 
         /**
          * Gets the head segment's seqNum.
@@ -27,7 +26,10 @@ public class Segment implements Comparable<Segment> {
     private int type;
     private int seqNum;
     private byte[] payload;
-    private long startTime;
+    private int payloadSize;
+    private BufferPool.Buffer buffer; // Holds the payload, null if not pooled.
+    private long sendTime; // In ms of simulated time.
+    private boolean retransmitted = false;
 
     public Segment(int seqNum, byte[] payload) {
         this(Transport.DATA, seqNum, payload);
@@ -36,19 +38,41 @@ public class Segment implements Comparable<Segment> {
         this.type = type;
         this.seqNum = seqNum;
         this.payload = payload;
-
-        startTime = System.currentTimeMillis();
+        this.payloadSize = payload.length;
+    }
+    // Takes over the reference to buffer, which holds the payload in its
+    // first payloadSize bytes.
+    public Segment(int type, int seqNum, BufferPool.Buffer buffer,
+                   int payloadSize, long sendTime) {
+        this(type, seqNum, buffer.array());
+        this.payloadSize = payloadSize;
+        this.buffer = buffer;
+        this.sendTime = sendTime;
     }
 
     public int getType() { return type; }
     public int getSeqNum() { return seqNum; }
     public byte[] getPayload() { return payload; }
-    public int getPayloadSize() { return payload.length; }
-    public int getRTT()
-        { return (int)(System.currentTimeMillis() - startTime); }
+    public int getPayloadSize() { return payloadSize; }
+    public BufferPool.Buffer getBuffer() {
+        if (buffer == null) buffer = BufferPool.wrap(payload);
+        return buffer;
+    }
+    // Gives up the reference to the pooled payload buffer.
+    public void release() {
+        if (buffer != null) buffer.release();
+        buffer = null;
+    }
+    // Time since the segment was sent, up to now.
+    public int getRTT(long now) { return (int)(now - sendTime); }
+
+    // Karn's rule: once a segment is resent, its ACK may be for either copy,
+    // so it gives no RTT sample.
+    public boolean isRetransmitted() { return retransmitted; }
+    public void setRetransmitted() { retransmitted = true; }
 
     public int compareTo(Segment o) {
-        return new Integer(seqNum).compareTo(o.getSeqNum());
+        return Integer.compare(seqNum, o.getSeqNum());
     }
 
     public boolean isNextTo(Segment o) {
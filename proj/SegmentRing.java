@@ -0,0 +1,70 @@
+import java.io.Serializable;
+
+// Ring of the segments sent and waiting for ACK. Segments are sent in order
+// of seqNum, so they are added at the tail in that order and ACKed from the
+// head, without comparisons or allocations. A resent segment stays in its
+// slot. The ring doubles when full.
+public class SegmentRing implements Serializable {
+    private Segment[] segments = new Segment[16]; // Length a power of 2.
+    private int head = 0;
+    private int count = 0;
+
+    public int size() { return count; }
+    public boolean isEmpty() { return count == 0; }
+
+    // @return The i-th segment from the head.
+    public Segment get(int i) {
+        return segments[(head + i) & (segments.length - 1)];
+    }
+
+    public Segment peek() { return (count == 0) ? null : segments[head]; }
+
+    /**
+     * Gets the head segment's seqNum.
+     *
+     * @return -1 if ring is empty.
+     */
+    public int peekSeqNum() {
+        return (count == 0) ? -1 : segments[head].getSeqNum();
+    }
+
+    // Adds segment at the tail. Its seqNum must be above those held.
+    public void add(Segment segment) {
+        if (count == segments.length) {
+            Segment[] grown = new Segment[2 * count];
+            for (int i = 0; i < count; i++) grown[i] = get(i);
+            segments = grown;
+            head = 0;
+        }
+        segments[(head + count) & (segments.length - 1)] = segment;
+        count++;
+    }
+
+    // Removes the head segment.
+    // @return null if ring is empty.
+    public Segment poll() {
+        if (count == 0) return null;
+
+        Segment segment = segments[head];
+        segments[head] = null;
+        head = (head + 1) & (segments.length - 1);
+        count--;
+        return segment;
+    }
+
+    // @return Index of the first segment with a seqNum of at least seqNum,
+    //         or size() if there is none.
+    public int indexOf(int seqNum) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (get(mid).getSeqNum() < seqNum) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
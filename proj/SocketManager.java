@@ -1,6 +1,7 @@
+import java.io.Serializable;
 import java.util.*;
 
-public class SocketManager {
+public class SocketManager implements Serializable {
     public static class AddressPair {
         public static String toString(int addr, int port) {
             return addr + ":" + port;
@@ -10,7 +11,7 @@ public class SocketManager {
         }
     }
 
-    private class SockSet {
+    private class SockSet implements Serializable {
         private Map<String, TCPSock> sockMap = new HashMap<String, TCPSock>();
 
         public SockSet(TCPSock sock) {
@@ -96,7 +97,7 @@ public class SocketManager {
     }
 
     private boolean isPortValid(int destPort) {
-        return destPort >= 0 && destPort <= Transport.MAX_PORT_NUM;
+        return Transport.validPort(destPort);
     }
 
     private boolean isPortAvailable(int destPort) {
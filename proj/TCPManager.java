@@ -1,3 +1,5 @@
+import java.io.Serializable;
+
 /**
  * <p>Title: CPSC 433/533 Programming Assignment</p>
  *
@@ -10,13 +12,16 @@
  * @author Qingyang Chen
  * @version 1.0
  */
-public class TCPManager {
-    private static final boolean LOG = false;
+public class TCPManager implements Serializable {
+    // Log messages are built on every segment, so the hot paths only build
+    // them if LOG is set.
+    static final boolean LOG = false;
 
     private Node node;
     private int addr;
     private Manager manager;
     private SocketManager sockMan = new SocketManager();
+    private BufferPool bufferPool = new BufferPool(); // Segment payloads.
 
     public TCPManager(Node node, int addr, Manager manager) {
         this.node = node;
@@ -61,10 +66,55 @@ public class TCPManager {
                      byte[] payload) {
         Transport transport =
             new Transport(srcPort, destPort, type, window, seqNum, payload);
-        node.sendSegment(node.getAddr(),
-                         destAddr,
-                         Protocol.TRANSPORT_PKT,
-                         transport.pack());
+        node.sendSegment(node.getAddr(), destAddr, transport);
+    }
+
+    /**
+     * Sends a segment whose payload is held in a pooled buffer. The segment
+     * takes a reference of its own, which the receiver releases.
+     */
+    public void send(int srcPort,
+                     int destAddr,
+                     int destPort,
+                     int type,
+                     int window,
+                     int seqNum,
+                     BufferPool.Buffer payload,
+                     int length) {
+        Transport transport =
+            new Transport(srcPort, destPort, type, window, seqNum,
+                          payload.retain(), length);
+        node.sendSegment(node.getAddr(), destAddr, transport);
+    }
+
+    /**
+     * Sends an ACK carrying SACK blocks, as returned by
+     * Transport.getSackBlocks. sackBlocks may be null.
+     */
+    public void sendACK(int srcPort,
+                        int destAddr,
+                        int destPort,
+                        int window,
+                        int seqNum,
+                        int[] sackBlocks) {
+        Transport transport =
+            new Transport(srcPort, destPort, Transport.ACK, window, seqNum,
+                          TCPSock.dummy);
+        transport.setSackBlocks(sackBlocks);
+        node.sendSegment(node.getAddr(), destAddr, transport);
+    }
+
+    public BufferPool getBufferPool() { return bufferPool; }
+
+    // Current time in ms.
+    public long now() { return manager.now(); }
+
+    /**
+     * Gets the largest payload of a segment that fits in the MTU of the
+     * link to destAddr.
+     */
+    public int getMaxSegmentSize(int destAddr) {
+        return Transport.maxPayloadSize(manager.getMTU(addr, destAddr));
     }
 
     public void receive(int srcAddr,
@@ -74,17 +124,22 @@ public class TCPManager {
                         Transport transport) {
         if (destAddr != addr) return;
 
-        String address =
-            SocketManager.AddressPair.toString(srcAddr, srcPort, destPort);
-        log("TCP Packet: " + address + " sent " + transport.getType());
+        String address = null;
+        if (LOG) {
+            address =
+                SocketManager.AddressPair.toString(srcAddr, srcPort, destPort);
+            log("TCP Packet: " + address + " sent " + transport.getType());
+        }
 
         TCPSock sock = sockMan.find(srcAddr, srcPort, destPort);
         if (sock == null) {
-            logError("Receive: Could not find socket for " + address);
-            return;
+            if (LOG) logError("Receive: Could not find socket for " + address);
+        } else {
+            sock.receive(srcAddr, srcPort, transport);
         }
 
-        sock.receive(srcAddr, srcPort, transport);
+        // The payload has been copied out, so the sender may reuse its buffer.
+        transport.release();
     }
 
     // Assign the port to the TCPSock.
@@ -102,7 +157,7 @@ public class TCPManager {
         return sockMan.unassign(srcAddr, srcPort, destPort);
     }
 
-    public void addTimer(long deltaT, Callback callback) {
-        node.getManager().addTimer(addr, deltaT, callback);
+    public TimerHandle addTimer(long deltaT, Task callback) {
+        return node.getManager().addTimer(addr, deltaT, callback);
     }
 }
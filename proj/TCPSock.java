@@ -1,4 +1,6 @@
-public class TCPSock {
+import java.io.Serializable;
+
+public class TCPSock implements Serializable {
     public static final byte dummy[] = new byte[0];
 
     // TCP socket states
@@ -22,15 +24,29 @@ public class TCPSock {
         CLIENT
     }
 
+    // Readiness events, delivered to the listener at the end of receive.
+    private static final int EVENT_CONNECTED = 1;
+    private static final int EVENT_ACCEPT_PENDING = 2;
+    private static final int EVENT_READABLE = 4;
+    private static final int EVENT_WRITABLE = 8;
+    private static final int EVENT_CLOSED = 16;
+
     private State state = State.UNBOUND;
     private Type type = Type.NONE;
 
+    private TCPSockListener listener = null;
+    private int pendingEvents = 0;
+
     private Node node;
     private TCPManager tcpMan;
 
     private int myPort;
     private int destAddr;
     private int destPort;
+    private int maxSegmentSize = 0; // 0 means segments fit the link MTU.
+    private int ackDelay = TCPSockServerClient.DEFAULT_ACK_DELAY;
+    private CongestionControl.Algorithm congestionControl =
+        CongestionControl.Algorithm.RENO;
 
     private TCPSockServer server; // Server variables.
     private TCPSockClient client; // Client variables.
@@ -115,6 +131,16 @@ public class TCPSock {
     public boolean isConnected() { return state == State.ESTABLISHED; }
     public boolean isClosurePending() { return state == State.SHUTDOWN; }
 
+    /**
+     * Set the listener that is told when the socket becomes ready, e.g.
+     * when data has arrived to be read
+     *
+     * @param listener TCPSockListener the listener, or null for none
+     */
+    public void setListener(TCPSockListener listener) {
+        this.listener = listener;
+    }
+
     /**
      * Initiate connection to a remote socket
      *
@@ -149,11 +175,9 @@ public class TCPSock {
     public void close() {
         if (isListening()) return;
 
-        client.incNextSeqNum(1);
-        client.send(Transport.FIN, dummy);
+        // The FIN is sent once the data still buffered has been.
         state = State.SHUTDOWN;
-
-        tcpMan.log("Sent FIN (" + client.getNextSeqNum() + ")");
+        client.close();
     }
 
     /**
@@ -174,60 +198,113 @@ public class TCPSock {
 
     /**
      * Write to the socket up to len bytes from the buffer buf starting at
-     * position pos.
+     * position pos. The bytes are copied into the socket's send buffer,
+     * and sent in full segments as the windows open.
      *
      * @param buf byte[] the buffer to write from
      * @param pos int starting position in buffer
      * @param len int number of bytes to write
      * @return int on success, the number of bytes written, which may be smaller
-     *             than len; on failure, -1
+     *             than len if the send buffer is full; on failure, -1
      */
     public int write(byte[] buf, int pos, int len) {
         if (isClosed()) return -1;
         if (!isClient()) return -1;
+        if (isClosurePending()) return -1;
 
-        tcpMan.log("Writing... can write " + client.getCanSendSize());
-        len = Math.min(Transport.MAX_PAYLOAD_SIZE,
-                       Math.min(len, client.getCanSendSize()));
-
-        int bytesWritten = 0;
-
-        // Write buf to payload.
-        byte[] payload = new byte[len];
-        for (int i = 0; i < Math.min(len, buf.length - pos); i ++) {
-            payload[i] = buf[pos + i];
-            bytesWritten ++;
-        }
-
-        client.send(Transport.DATA, payload);
+        len = Math.min(len, buf.length - pos);
+        int written = client.write(buf, pos, len);
+        if (TCPManager.LOG) tcpMan.log("Wrote " + written + ", can send " + client.getCanSendSize());
 
-        return bytesWritten;
+        return written;
     }
 
     /**
      * Read from the socket up to len bytes into the buffer buf starting at
-     * position pos.
+     * position pos. Once the connection is closed, the data still buffered
+     * can be read.
      *
      * @param buf byte[] the buffer
      * @param pos int starting position in buffer
      * @param len int number of bytes to read
      * @return int on success, the number of bytes read, which may be smaller
-     *             than len; on failure, -1
+     *             than len; on failure, or once the connection is closed and
+     *             all data has been read, -1
      */
     public int read(byte[] buf, int pos, int len) {
-        if (isClosed()) return -1;
         if (!isServerClient()) return -1;
 
-        return serverClient.read(buf, pos, len);
+        int bytesRead = serverClient.read(buf, pos, len);
+        if (bytesRead == 0 && isClosed()) return -1;
+
+        return bytesRead;
     }
 
     /** END SOCKET API **/
 
     public TCPManager getManager() { return tcpMan; }
 
+    // Segments are sized to the MTU of the link to the remote socket,
+    // unless a larger size is set, in which case the node fragments them.
+    public int getMaxSegmentSize() {
+        if (maxSegmentSize > 0) return maxSegmentSize;
+        return tcpMan.getMaxSegmentSize(destAddr);
+    }
+
+    /**
+     * Set the largest segment payload, before connecting
+     *
+     * @param mss int size in bytes, or 0 to fit segments to the link MTU
+     */
+    public void setMaxSegmentSize(int mss) {
+        if (mss < 0 || mss > Transport.MAX_WIDE_PAYLOAD_SIZE)
+            throw new IllegalArgumentException("Illegal segment size " + mss);
+        maxSegmentSize = mss;
+    }
+
+    public int getAckDelay() { return ackDelay; }
+
+    /**
+     * Set how long received data may wait for its ACK, so that it can be
+     * ACKed together with the next segment. Connections accepted by a
+     * listening socket take its delay
+     *
+     * @param ms int delay in milliseconds, or 0 to ACK every segment at once
+     */
+    public void setAckDelay(int ms) {
+        if (ms < 0)
+            throw new IllegalArgumentException("Illegal ACK delay " + ms);
+        ackDelay = ms;
+    }
+
+    public CongestionControl.Algorithm getCongestionControl() {
+        return congestionControl;
+    }
+
+    /**
+     * Set the congestion control algorithm, before connecting
+     *
+     * @param algorithm CongestionControl.Algorithm the algorithm, RENO by
+     *                  default
+     */
+    public void setCongestionControl(CongestionControl.Algorithm algorithm) {
+        if (algorithm == null)
+            throw new IllegalArgumentException("No congestion control");
+        congestionControl = algorithm;
+    }
+
     public void send(int type, int window, int seqNum, byte[] payload) {
         tcpMan.send(myPort, destAddr, destPort, type, window, seqNum, payload);
     }
+    public void send(int type, int window, int seqNum,
+                     BufferPool.Buffer payload, int length) {
+        tcpMan.send(myPort, destAddr, destPort, type, window, seqNum,
+                    payload, length);
+    }
+
+    public void sendACK(int window, int seqNum, int[] sackBlocks) {
+        tcpMan.sendACK(myPort, destAddr, destPort, window, seqNum, sackBlocks);
+    }
 
     public void receive(int srcAddr, int srcPort, Transport transport) {
         if (isClosed()) return;
@@ -254,6 +331,21 @@ public class TCPSock {
 
         if (isNone())
             tcpMan.logError("Received message when not server or client?");
+
+        fireEvents();
+    }
+
+    // Tells the listener of the events that receiving a segment caused.
+    private void fireEvents() {
+        int events = pendingEvents;
+        pendingEvents = 0;
+        if (listener == null) return;
+
+        if ((events & EVENT_CONNECTED) != 0) listener.onConnected(this);
+        if ((events & EVENT_ACCEPT_PENDING) != 0) listener.onAcceptPending(this);
+        if ((events & EVENT_READABLE) != 0) listener.onReadable(this);
+        if ((events & EVENT_WRITABLE) != 0) listener.onWritable(this);
+        if ((events & EVENT_CLOSED) != 0) listener.onClosed(this);
     }
 
     // Server receive SYN on listener.
@@ -275,6 +367,7 @@ public class TCPSock {
         // Make the TCPSock.
         TCPSock sock =
             new TCPSock(tcpMan, node, myPort, srcAddr, srcPort, transport);
+        sock.setAckDelay(ackDelay);
 
         // Register with TCPManager.
         if (!tcpMan.bind(srcAddr, srcPort, myPort, sock)) {
@@ -286,19 +379,29 @@ public class TCPSock {
         if (!server.addToBacklog(sock)) {
             sock.release();
             tcpMan.logError("Could not add to backlog.");
+            return;
         }
+        pendingEvents |= EVENT_ACCEPT_PENDING;
     }
 
     // Client receive ACK.
     private void receiveACK(Transport transport) {
         if (!isClient()) return;
 
+        int sendBufferSpace = client.getSendBufferSpace();
+
         receiveACKForFIN(transport);
         receiveACKForSYN(transport);
         receiveACKForDATA(transport);
 
         client.setWindowSize(transport.getWindow());
-        tcpMan.log("Received ACK for " + transport.getSeqNum() + " with window size: " + client.getWindowSize());
+        if (TCPManager.LOG) tcpMan.log("Received ACK for " + transport.getSeqNum() + " with window size: " + client.getWindowSize());
+
+        // The windows may have opened for more of the buffered data.
+        if (!isClosed()) client.sendBuffered();
+
+        if (isConnected() && client.getSendBufferSpace() > sendBufferSpace)
+            pendingEvents |= EVENT_WRITABLE;
     }
 
     private void receiveACKForSYN(Transport transport) {
@@ -307,7 +410,8 @@ public class TCPSock {
 
         if (transport.getSeqNum() == client.getNextSeqNum()) {
             state = State.ESTABLISHED;
-            client.setSendBase(client.getNextSeqNum() + 1);
+            client.setSendBase(client.getNextSeqNum());
+            pendingEvents |= EVENT_CONNECTED;
 
             tcpMan.log("Connected!");
             System.out.print(":");
@@ -317,18 +421,27 @@ public class TCPSock {
         tcpMan.logError("Received future ACK while not connected.");
     }
 
+    // Also while closure is pending, so data lost before the FIN is still
+    // recovered.
     private void receiveACKForDATA(Transport transport) {
         if (!isClient()) return;
-        if (isClosurePending()) return;
+        if (isClosed()) return;
         if (isConnectionPending()) return;
+        if (isClosurePending() && client.isFINSent() &&
+            transport.getSeqNum() == client.getNextSeqNum()) return;
 
-        client.receivedACKForSeqNum(transport.getSeqNum());
+        client.receivedACKForSeqNum(transport.getSeqNum(),
+                                    transport.getWindow(),
+                                    transport.getSackBlocks());
     }
 
     private void receiveACKForFIN(Transport transport) {
         if (!isClient()) return;
         if (!isClosurePending()) return;
+        if (!client.isFINSent()) return;
 
+        // ACKs for data sent before the FIN are left to receiveACKForDATA.
+        if (transport.getSeqNum() < client.getNextSeqNum()) return;
         if (transport.getSeqNum() != client.getNextSeqNum()) {
             tcpMan.logError("Received incorrect FIN ACK (" + client.getNextSeqNum() + "!=" + transport.getSeqNum() + ").");
 
@@ -338,6 +451,7 @@ public class TCPSock {
 
         client.setSendBase(transport.getSeqNum() + 1);
         release();
+        pendingEvents |= EVENT_CLOSED;
 
         tcpMan.log("Received ACK for FIN. Closed.");
         System.out.print(":");
@@ -348,9 +462,13 @@ public class TCPSock {
         if (!isServerClient()) return;
         if (!isConnected() && !isClosurePending()) return;
 
-        tcpMan.log("Received data (" + transport.getPayload().length + ") with seqNum " + transport.getSeqNum());
+        if (TCPManager.LOG) tcpMan.log("Received data (" + transport.getPayloadLength() + ") with seqNum " + transport.getSeqNum());
 
-        serverClient.receiveDATA(transport.getSeqNum(), transport.getPayload());
+        int available = serverClient.getAvailable();
+        serverClient.receiveDATA(transport.getSeqNum(), transport.getPayloadArray(),
+                                 transport.getPayloadOffset(), transport.getPayloadLength());
+        if (serverClient.getAvailable() > available)
+            pendingEvents |= EVENT_READABLE;
 
         // Check if ACK needs to be sent for FIN if in SHUTDOWN.
         sendACKForFIN();
@@ -381,7 +499,9 @@ public class TCPSock {
 
         serverClient.sendACKForFIN();
 
+        // The data not read yet stays readable.
         release();
+        pendingEvents |= EVENT_CLOSED;
 
         tcpMan.log("Sent ACK for FIN (" + serverClient.getSeqNumFIN() + ")");
     }
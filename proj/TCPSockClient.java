@@ -1,37 +1,74 @@
+import java.io.Serializable;
 import java.util.*;
 
-public class TCPSockClient {
+public class TCPSockClient implements Serializable {
+    public static final int SEND_BUFFER_SIZE = 0x10000;
+
     private int nextSeqNum;
     private int sendBase;
     private int windowSize = TCPSockServerClient.READ_BUFFER_SIZE;
-    private int congestionWindowSize = Transport.MAX_PAYLOAD_SIZE;
+    private CongestionControl congestionControl;
 
     private TCPSockClientTimer timer = new TCPSockClientTimer(this);
     private int duplicateACKs = 0;
 
+    // SACK scoreboard: data above sendBase the receiver has reported
+    // holding. Only the holes below it are resent.
+    private RangeSet sacked = new RangeSet();
+    // Fast recovery (NewReno) lasts until everything that was in flight at
+    // the loss, up to recoverSeqNum, is ACKed. After a timeout, what was in
+    // flight up to recoverSeqNum is resent as the ACKs reach it.
+    private boolean recovering = false;
+    private int recoverSeqNum;
+    // Highest seqNum resent since the last loss.
+    private int highestResent = -1;
+
+    // Ring buffer of data written but not sent yet.
+    private byte[] sendBuffer = new byte[SEND_BUFFER_SIZE];
+    private int sendBufferStart = 0;
+    private int sendBufferLength = 0;
+    private boolean closing = false; // Send the FIN once the buffer is empty.
+    private boolean finSent = false;
+
     private TCPSock sock;
 
     public TCPSockClient(TCPSock sock) {
         // Initialize client variables.
         nextSeqNum = generateSeqNum();
         sendBase = nextSeqNum;
+        recoverSeqNum = nextSeqNum;
         this.sock = sock;
+        congestionControl =
+            sock.getCongestionControl().create(sock.getMaxSegmentSize());
     }
 
     public void send(int type, byte[] payload) {
-        sock.getManager().log("Send: " + type + ", " + nextSeqNum + ", " + payload.length);
+        send(type, BufferPool.wrap(payload), payload.length);
+    }
+    // The caller keeps its reference to payload. The packet sent and the
+    // queue waiting for ACK take references of their own.
+    public void send(int type, BufferPool.Buffer payload, int length) {
+        if (TCPManager.LOG) sock.getManager().log("Send: " + type + ", " + nextSeqNum + ", " + length);
 
-        send(type, nextSeqNum, payload);
-        incNextSeqNum(payload.length);
+        send(type, nextSeqNum, payload, length);
+        incNextSeqNum(length);
     }
-    public void send(int type, int seqNum, byte[] payload) {
-        sock.send(type, 0, seqNum, payload);
+    public void send(int type, int seqNum, BufferPool.Buffer payload, int length) {
+        transmit(type, seqNum, payload, length);
 
         // Add segment to the queue waiting for ACK.
-        timer.addToQueue(type, seqNum, payload);
+        timer.addToQueue(type, seqNum, payload, length);
 
         // Start timer.
         if (!timer.isRunning()) timer.start();
+    }
+    // Resends a segment of the queue waiting for ACK, which keeps it there.
+    public void resend(Segment segment) {
+        transmit(segment.getType(), segment.getSeqNum(), segment.getBuffer(),
+                 segment.getPayloadSize());
+    }
+    private void transmit(int type, int seqNum, BufferPool.Buffer payload, int length) {
+        sock.send(type, 0, seqNum, payload, length);
 
         switch (type) {
         case Transport.SYN: System.out.print("S"); break;
@@ -43,62 +80,149 @@ public class TCPSockClient {
         }
     }
 
-    public void receivedACKForSeqNum(int seqNum) {
-        sock.getManager().log("\tReceived ACK for seqNum " + seqNum + ", current sendBase " + sendBase);
+    /**
+     * Copies up to len bytes into the send buffer, and sends as much of the
+     * buffered data as the windows allow.
+     *
+     * @return The number of bytes buffered, limited by the free space.
+     */
+    public int write(byte[] buf, int pos, int len) {
+        len = Math.min(len, sendBuffer.length - sendBufferLength);
+        int end = (sendBufferStart + sendBufferLength) % sendBuffer.length;
+        int first = Math.min(len, sendBuffer.length - end);
+        System.arraycopy(buf, pos, sendBuffer, end, first);
+        System.arraycopy(buf, pos + first, sendBuffer, 0, len - first);
+        sendBufferLength += len;
+
+        sendBuffered();
+        return len;
+    }
 
-        int numACKed = 1;
+    /**
+     * Sends the buffered data in segments of the MSS while the congestion
+     * and flow control windows have room for them. Nagle: a short segment
+     * is only sent when no data is unACKed, or when closing. Then the FIN,
+     * if closing and the buffer is empty.
+     */
+    public void sendBuffered() {
+        if (sock.isConnectionPending()) return;
+
+        int mss = sock.getMaxSegmentSize();
+        while (sendBufferLength > 0) {
+            int len = Math.min(mss, sendBufferLength);
+            boolean idle = nextSeqNum == sendBase;
+            int canSend = getCanSendSize();
+            if (len > canSend) {
+                // With nothing in flight, no ACK would come to open the
+                // windows, so probe them with what fits, at least 1 byte.
+                if (!idle) break;
+                len = Math.max(1, canSend);
+            } else if (len < mss && !idle && !closing) {
+                break;
+            }
+            sendFromBuffer(len);
+        }
+
+        if (closing && !finSent && sendBufferLength == 0) {
+            finSent = true;
+            incNextSeqNum(1);
+            send(Transport.FIN, TCPSock.dummy);
+            sock.getManager().log("Sent FIN (" + nextSeqNum + ")");
+        }
+    }
+
+    // Sends the FIN after the data still buffered.
+    public void close() {
+        closing = true;
+        sendBuffered();
+    }
+    public boolean isFINSent() { return finSent; }
+    public int getSendBufferSpace() { return sendBuffer.length - sendBufferLength; }
+
+    public void receivedACKForSeqNum(int seqNum, int window, int[] sackBlocks) {
+        if (TCPManager.LOG) sock.getManager().log("\tReceived ACK for seqNum " + seqNum + ", current sendBase " + sendBase);
+
+        long now = sock.getManager().now();
 
         if (seqNum > sendBase) {
-            sock.getManager().log("\tReceived ACK, updated sendBase from " + sendBase + " to " + seqNum);
+            if (TCPManager.LOG) sock.getManager().log("\tReceived ACK, updated sendBase from " + sendBase + " to " + seqNum);
 
-            numACKed = setSendBase(seqNum);
+            int ackedBytes = seqNum - sendBase;
+            setSendBase(seqNum);
             duplicateACKs = 0;
+            updateScoreboard(sackBlocks);
+
+            int inFlight = nextSeqNum - sendBase;
+            if (recovering && sendBase >= recoverSeqNum) {
+                // Full ACK, for all that was in flight at the loss.
+                recovering = false;
+                congestionControl.onRecoveryEnd(ackedBytes, inFlight, now);
+            } else if (recovering) {
+                // Partial ACK: more of the window was lost.
+                resendLost();
+                congestionControl.onPartialACK(ackedBytes, inFlight, now);
+            } else {
+                if (sendBase < recoverSeqNum) resendLost();
+                congestionControl.onACK(ackedBytes, inFlight, now);
+            }
 
             // If there are currently any not-yet-acknowledged segments,
             // start timer.
             if (nextSeqNum > sendBase) {
-                sock.getManager().log("Still has unACKed segments till " + nextSeqNum);
+                if (TCPManager.LOG) sock.getManager().log("Still has unACKed segments till " + nextSeqNum);
 
                 timer.start();
+            } else {
+                // Everything is ACKed, so the pending timeout is not needed.
+                timer.stop();
             }
 
             System.out.print(":");
-        } else { // A duplicate ACK received.
-            // Increment number of duplicate ACKs.
-            duplicateACKs ++;
+        } else if (nextSeqNum > sendBase) { // A duplicate ACK received.
+            // Increment number of duplicate ACKs. An ACK that updates the
+            // window, e.g. after the receiver read, is not a duplicate.
+            updateScoreboard(sackBlocks);
+            if (window == windowSize) {
+                duplicateACKs ++;
+                congestionControl.onDuplicateACK(now);
+            }
 
-            // TCP fast retransmit resend segment.
-            if (duplicateACKs == 3) {
+            if (recovering) {
+                // Resend the holes that new SACK blocks have shown.
+                resendHoles();
+            } else if (duplicateACKs == 3) {
+                // TCP fast retransmit resend segment, and the holes below
+                // the data SACKed, then fast recovery.
                 duplicateACKs = 0;
 
                 sock.getManager().log("TCP fast retransmit:");
                 timer.resend();
+                highestResent = sendBase;
+                resendHoles();
 
-                slowDecreaseCongestionWindowSize();
+                recovering = true;
+                recoverSeqNum = nextSeqNum;
+                congestionControl.onLoss(nextSeqNum - sendBase, now);
             }
 
             System.out.print("?");
         }
-
-        // Increase the congestion window no matter what.
-        increaseCongestionWindowSize(numACKed);
     }
 
     public TCPSock getSock() { return sock; }
     public int getNextSeqNum() { return nextSeqNum; }
     public int getSendBase() { return sendBase; }
     public int getWindowSize() { return windowSize; }
+    public CongestionControl getCongestionControl() { return congestionControl; }
     public void incNextSeqNum(int amount) { nextSeqNum += amount; }
     public void setNextSeqNum(int seqNum) { nextSeqNum = seqNum; }
     public void setWindowSize(int windowSize) { this.windowSize = windowSize; }
 
     // Flow Control: Gets the number of bytes that still can be sent.
-    //               We can always send >=1 byte.
+    //               May be 0 or less if the windows are full.
     public int getCanSendSize() {
-        int unackedSize = nextSeqNum - sendBase + 1;
-        return Math.max(1,
-                        Math.min(congestionWindowSize - unackedSize,
-                                 windowSize - unackedSize));
+        int unackedSize = nextSeqNum - sendBase;
+        return Math.min(congestionControl.getWindow(), windowSize) - unackedSize;
     }
 
     // @return Number of segments ACKed.
@@ -109,25 +233,60 @@ public class TCPSockClient {
         return timer.pruneQueue(sendBase);
     }
 
-    private int generateSeqNum() {
-        Random rand = new Random(System.nanoTime());
-        return rand.nextInt(1 << 16);
+    // After a timeout, which has resent the segment at sendBase, the window
+    // starts over and the next duplicate ACKs start a new fast retransmit.
+    public void timedOut() {
+        recovering = false;
+        recoverSeqNum = nextSeqNum;
+        highestResent = sendBase;
+        congestionControl.onTimeout(nextSeqNum - sendBase,
+                                    sock.getManager().now());
     }
 
-    private void increaseCongestionWindowSize(int count) {
-        congestionWindowSize +=
-            count *
-            Transport.MAX_PAYLOAD_SIZE * Transport.MAX_PAYLOAD_SIZE /
-            Math.max(1, congestionWindowSize);
-        // System.out.println("\tcwnd inc to " + congestionWindowSize);
+    // Adds the SACK blocks that lie between sendBase and nextSeqNum to the
+    // scoreboard, and drops what has been ACKed from it.
+    private void updateScoreboard(int[] sackBlocks) {
+        sacked.removeBelow(sendBase);
+        if (sackBlocks == null) return;
+
+        for (int i = 0; i < sackBlocks.length; i += 2) {
+            int left = Math.max(sackBlocks[i], sendBase);
+            int right = Math.min(sackBlocks[i + 1], nextSeqNum);
+            sacked.add(left, right);
+        }
     }
-    public void decreaseCongestionWindowSize() {
-        congestionWindowSize /= 2;
-        // System.out.println("\tcwnd dec to " + congestionWindowSize);
+
+    // Sends the next len bytes of the send buffer in a segment whose payload
+    // is borrowed from the pool. It goes back once the segment has been
+    // ACKed and every copy sent delivered.
+    private void sendFromBuffer(int len) {
+        BufferPool.Buffer payload = sock.getManager().getBufferPool().acquire(len);
+        int first = Math.min(len, sendBuffer.length - sendBufferStart);
+        System.arraycopy(sendBuffer, sendBufferStart, payload.array(), 0, first);
+        System.arraycopy(sendBuffer, 0, payload.array(), first, len - first);
+        sendBufferStart = (sendBufferStart + len) % sendBuffer.length;
+        sendBufferLength -= len;
+
+        send(Transport.DATA, payload, len);
+        payload.release();
     }
-    private void slowDecreaseCongestionWindowSize() {
-        decreaseCongestionWindowSize();
-        congestionWindowSize += Transport.MAX_PAYLOAD_SIZE * 3;
-        // System.out.println("\tcwnd dec to " + congestionWindowSize);
+
+    // The ACK stopped at sendBase, so the segment there was lost too. Resends
+    // it, unless it has been already, and the holes SACKed data shows.
+    private void resendLost() {
+        if (sendBase > highestResent) {
+            timer.resend();
+            highestResent = sendBase;
+        }
+        resendHoles();
+    }
+
+    private void resendHoles() {
+        highestResent = timer.resendHoles(sacked, highestResent + 1);
+    }
+
+    private int generateSeqNum() {
+        Random rand = new Random(System.nanoTime());
+        return rand.nextInt(1 << 16);
     }
 }
\ No newline at end of file
@@ -1,15 +1,22 @@
-import java.lang.reflect.Method;
-import java.util.*;
-
-public class TCPSockClientTimer {
-    private static final int DEFAULT_TIMEOUT = 1000;
-
-    private Segment.Buffer segmentQueue = new Segment.Buffer();
+import java.io.Serializable;
+
+// Retransmission timer of a TCPSockClient, with the RTO of RFC 6298 and the
+// queue of segments waiting for ACK.
+public class TCPSockClientTimer implements Serializable {
+    private static final int DEFAULT_TIMEOUT = 1000; // Before any RTT sample.
+    // RFC 6298 rounds the RTO up to 1 s; 200 ms, as most stacks use, keeps
+    // timeouts on the short simulated links from stalling for long.
+    private static final int MIN_TIMEOUT = 200;
+    private static final int MAX_TIMEOUT = 60000;
+
+    private SegmentRing segmentQueue = new SegmentRing();
     private boolean running = false;
     private int timeoutInterval = DEFAULT_TIMEOUT;
-    private double estimatedRTT = DEFAULT_TIMEOUT;
+    private double estimatedRTT = -1; // -1 until the first RTT sample.
     private double devRTT = 0;
-    private long currentId = 0;
+    private TimerHandle timer = null;
+    // Times the timeout has been doubled since data was last ACKed.
+    private int backoff = 0;
 
     private TCPSockClient client;
 
@@ -17,108 +24,143 @@ public class TCPSockClientTimer {
         this.client = client;
     }
 
-    public void timeout(Long id, Integer timeoutMultiplier) {
-        // If this timer is outdated, just return.
-        if (id != currentId) return;
+    public void timeout() {
+        client.getSock().getManager().log("Timer timed out with backoff " + backoff);
 
-        client.getSock().getManager().log("Timer " + id + " timed out with multiplier " + timeoutMultiplier);
+        // Back off until the timeout reaches MAX_TIMEOUT.
+        if (getTimeout() < MAX_TIMEOUT) backoff++;
+        resend();
+        start();
 
-        resend(timeoutMultiplier);
+        client.timedOut();
+    }
+
+    // Resends the first segment waiting for ACK.
+    public void resend() {
+        Segment segment = peekQueue();
+        if (segment == null) {
+            stop();
+            client.getSock().getManager().log("Timeout/Resend: No segments on queue.");
+            return;
+        }
 
-        client.decreaseCongestionWindowSize();
+        client.getSock().getManager().log("Timeout/Resend: " + segment.getType() + ", " + segment.getSeqNum());
+        resend(segment);
     }
 
-    public void resend() { resend(1); }
+    // Starts the timer for the timeout. Any pending timeout is rescheduled
+    // rather than left in the event queue.
+    public void start() {
+        // Make sure the queue has something.
+        if (segmentQueue.peekSeqNum() == -1) return;
+
+        long deltaT = getTimeout();
+        if (timer != null) {
+            timer.reschedule(deltaT);
+        } else {
+            timer = client.getSock().getManager().addTimer(deltaT, this::timeout);
+            if (timer == null) {
+                client.getSock().getManager().logError("Timer could not be created!");
+                return;
+            }
+        }
+
+        if (TCPManager.LOG) client.getSock().getManager().log("Started timer with timeout " + deltaT);
 
-    public void start() { start(1); }
-    public void stop() { running = false; }
+        running = true;
+    }
+    public void stop() {
+        if (timer != null) timer.cancel();
+        running = false;
+    }
     public boolean isRunning() { return running; }
 
-    public void addToQueue(int type, int seqNum, byte[] payload) {
-        segmentQueue.add(type, seqNum, payload);
+    public void addToQueue(int type, int seqNum, BufferPool.Buffer payload, int length) {
+        segmentQueue.add(new Segment(type, seqNum, payload.retain(), length,
+                                     client.getSock().getManager().now()));
     }
-    // Removes from segmentQueue all segments with seqNum < nextSeqNum.
-    // Also gets the sampleRTTs and recalculates the timeoutInterval.
+    // Removes from segmentQueue all segments with seqNum < nextSeqNum, and
+    // releases their payload buffers.
+    // Also takes an RTT sample from the last segment ACKed, and recalculates
+    // the timeoutInterval. Karn's rule: there is no sample if any segment
+    // ACKed was resent, as the ACK may have waited for the copy resent.
+    // The backoff ends all the same, as the ACK shows the path delivers
+    // again: under heavy loss, resent segments may be all that is in flight.
     // @return Number of segments pruned.
     public int pruneQueue(int nextSeqNum) {
-        // This holds all seqNums pruned mapped to a sampleRTT. If any seqNum is
-        // encountered twice, we set the sampleRTT to -1 to invalidate it.
-        // (ie. we do not use any sampleRTT for retransmitted segments)
-        Map<Integer, Integer> sampleRTTMap = new HashMap<Integer, Integer>();
+        long now = client.getSock().getManager().now();
+        int sampleRTT = 0;
+        boolean retransmitted = false;
+        int count = 0;
 
         // Prune the segmentQueue.
         while (segmentQueue.peekSeqNum() != -1 &&
                segmentQueue.peekSeqNum() < nextSeqNum) {
             Segment ackedSegment = segmentQueue.poll();
+            ackedSegment.release();
+            count++;
 
-            Integer sampleRTTOrig = sampleRTTMap.put(
-                ackedSegment.getSeqNum(), ackedSegment.getRTT());
-            if (sampleRTTOrig != null)
-                sampleRTTMap.put(ackedSegment.getSeqNum(), -1);
+            if (ackedSegment.isRetransmitted()) retransmitted = true;
+            sampleRTT = ackedSegment.getRTT(now);
         }
 
-        // Iterate through sampleRTTMap to recalculate the timeoutInterval.
-        for (Integer sampleRTT : sampleRTTMap.values()) {
-            if (sampleRTT == -1) continue;
-            recalculateTimeoutInterval(sampleRTT);
+        if (count > 0) backoff = 0;
+        if (count > 0 && !retransmitted) {
+            recalculateTimeoutInterval(sampleRTT, now);
         }
 
-        return sampleRTTMap.size();
+        return count;
     }
     public Segment peekQueue() { return segmentQueue.peek(); }
 
-    private void recalculateTimeoutInterval(int sampleRTT) {
-        estimatedRTT = 0.875 * estimatedRTT + 0.125 * sampleRTT;
-        devRTT = 0.75 * devRTT + 0.25 * Math.abs(sampleRTT - estimatedRTT);
-        timeoutInterval = (int)(estimatedRTT + 4 * devRTT) + 1;
-        client.getSock().getManager().log("\tnew timeout: " + timeoutInterval + " (" + sampleRTT + ")");
-    }
-
-    // Starts the timer for timeoutInterval * timeoutMultiplier.
-    private void start(Integer timeoutMultiplier) {
-        // Make sure the queue has something.
-        if (segmentQueue.peekSeqNum() == -1) return;
-
-        // Keep track of the latest timer.
-        currentId ++;
-
-        // Construct callback parameters.
-        String[] paramTypes = { "java.lang.Long", "java.lang.Integer" };
-        Object[] params = { currentId, timeoutMultiplier };
-
-        // Construct callback.
-        try {
-            Method method = Callback.getMethod("timeout", this, paramTypes);
-            Callback callback = new Callback(method, this, params);
-
-            // Add timer.
-            client.getSock().getManager().addTimer(
-                timeoutInterval * timeoutMultiplier, callback);
-
-            client.getSock().getManager().log("Added timer " + currentId + " with timeout " + timeoutInterval * timeoutMultiplier);
-        } catch (Exception e) {
-            currentId --;
-            client.getSock().getManager().logError("Timer could not be created!");
-            e.printStackTrace();
-            return;
+    // Resends, in order of seqNum, the DATA segments from fromSeqNum on that
+    // the SACK scoreboard shows are missing: below the highest SACKed data,
+    // but not SACKed themselves. The timer is left running.
+    // @return The highest seqNum resent, or fromSeqNum - 1 if none was.
+    public int resendHoles(RangeSet sacked, int fromSeqNum) {
+        int highestSACKed = sacked.getMax();
+        int highestResent = fromSeqNum - 1;
+        for (int i = segmentQueue.indexOf(fromSeqNum); i < segmentQueue.size(); i++) {
+            Segment segment = segmentQueue.get(i);
+            int seqNum = segment.getSeqNum();
+            int end = seqNum + segment.getPayloadSize();
+            if (end > highestSACKed) break;
+            if (segment.getType() != Transport.DATA) continue;
+            if (sacked.contains(seqNum, end)) continue;
+
+            if (TCPManager.LOG) client.getSock().getManager().log("SACK resend: " + seqNum);
+            resend(segment);
+            highestResent = seqNum;
         }
+        return highestResent;
+    }
 
-        running = true;
+    // @return The timeout, timeoutInterval doubled for each backoff.
+    public int getTimeout() {
+        return (int)Math.min(MAX_TIMEOUT, (long)timeoutInterval << backoff);
     }
 
-    private void resend(Integer timeoutMultiplier) {
-        Segment segment = peekQueue();
-        if (segment == null) {
-            stop();
-            client.getSock().getManager().log("Timeout/Resend: No segments on queue.");
-            return;
+    // RFC 6298: the RTT variance is updated with the old estimate, and the
+    // RTO is the estimate plus 4 times the variance, at least 1 ms, within
+    // MIN_TIMEOUT and MAX_TIMEOUT.
+    private void recalculateTimeoutInterval(int sampleRTT, long now) {
+        client.getCongestionControl().onRTTSample(sampleRTT, now);
+
+        if (estimatedRTT < 0) {
+            estimatedRTT = sampleRTT;
+            devRTT = sampleRTT / 2.0;
+        } else {
+            devRTT = 0.75 * devRTT + 0.25 * Math.abs(sampleRTT - estimatedRTT);
+            estimatedRTT = 0.875 * estimatedRTT + 0.125 * sampleRTT;
         }
+        int timeout = (int)Math.ceil(estimatedRTT + Math.max(1, 4 * devRTT));
+        timeoutInterval = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+        if (TCPManager.LOG) client.getSock().getManager().log("\tnew timeout: " + timeoutInterval + " (" + sampleRTT + ")");
+    }
 
-        client.getSock().getManager().log("Timeout/Resend: " + segment.getType() + ", " + segment.getSeqNum());
-
-        client.send(
-            segment.getType(), segment.getSeqNum(), segment.getPayload());
-
-        start(timeoutMultiplier * 2);
+    // Resends segment, which stays in the queue.
+    private void resend(Segment segment) {
+        segment.setRetransmitted();
+        client.resend(segment);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,23 @@
+import java.io.Serializable;
+
+// Receives the readiness events of a TCPSock, set with TCPSock.setListener,
+// so that applications need not poll the socket. The events of a segment
+// are delivered once the socket is done processing it, so the socket can be
+// used from them. Only the events that are needed have to be implemented.
+public interface TCPSockListener extends Serializable {
+    // A connection initiated with connect has been established.
+    default void onConnected(TCPSock sock) {}
+
+    // A listening socket has an established connection for accept.
+    default void onAcceptPending(TCPSock sock) {}
+
+    // New data has arrived and can be read.
+    default void onReadable(TCPSock sock) {}
+
+    // The send buffer has room again for write.
+    default void onWritable(TCPSock sock) {}
+
+    // The connection has been closed by the remote socket or after close.
+    // What the socket has still buffered can be read, then read returns -1.
+    default void onClosed(TCPSock sock) {}
+}
@@ -1,6 +1,7 @@
+import java.io.Serializable;
 import java.util.concurrent.*;
 
-public class TCPSockServer {
+public class TCPSockServer implements Serializable {
     private ArrayBlockingQueue<TCPSock> backlog;
 
     public TCPSockServer(int backlog) {
@@ -1,14 +1,25 @@
+import java.io.*;
 import java.nio.*;
+import java.util.Arrays;
 
-public class TCPSockServerClient {
+public class TCPSockServerClient implements Serializable {
     public static final int READ_BUFFER_SIZE = 0x4000;
+    public static final int DEFAULT_ACK_DELAY = 40; // ms
 
     private Segment.Buffer segmentBuffer = new Segment.Buffer();
-    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private RangeSet bufferedRanges = new RangeSet(); // Data in segmentBuffer, reported in SACK blocks.
+    private int lastBufferedSeqNum = -1;
+    private transient ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE); // Saved by writeObject.
 
     private int nextSeqNum;
     private int seqNumFIN = -1; // -1 means it is not set.
 
+    // Delayed ACKs: segments received in-order since the last ACK, and the
+    // timer that sends the ACK if no second one arrives.
+    private int unACKedSegments = 0;
+    private TimerHandle ackTimer = null;
+    private int advertisedWindow = READ_BUFFER_SIZE; // In the last ACK sent.
+
     private TCPSock sock;
 
     public TCPSockServerClient(TCPSock sock) {
@@ -21,82 +32,187 @@ public class TCPSockServerClient {
     public void setNextSeqNum(int seqNum) { nextSeqNum = seqNum; }
 
     public void sendACK() {
-        sock.send(Transport.ACK, getReceiveWindow(), nextSeqNum, TCPSock.dummy);
+        cancelDelayedACK();
+        advertisedWindow = getReceiveWindow();
+        sock.sendACK(advertisedWindow, nextSeqNum, getSackBlocks());
     }
     public void sendACKForFIN() {
+        cancelDelayedACK();
         sock.send(Transport.ACK, getReceiveWindow(), seqNumFIN, TCPSock.dummy);
     }
 
-    public void receiveDATA(int seqNum, byte[] payload) {
+    /**
+     * Receives a DATA segment whose payload is held in buf. The payload is
+     * copied once, into the read buffer, if it can be delivered right away.
+     * Otherwise it is copied into the segment buffer, as buf may be reused.
+     *
+     * In-order data is ACKed every second segment, or once the socket's ACK
+     * delay has passed. Short segments count too, as the sender's segment
+     * size is not known here. Out-of-order and gap-filling segments
+     * are ACKed at once, so the sender's fast retransmit still works.
+     */
+    public void receiveDATA(int seqNum, byte[] buf, int offset, int length) {
         int prevSeqNum = nextSeqNum;
+        boolean ackNow;
 
         if (nextSeqNum == seqNum) {
             // Segment received is in-order.
-            // Deliver all consecutive received segments and ACK for last
-            // delivered segment.
-            bufferSegment(seqNum, payload);
+            // Deliver it and all consecutive received segments and ACK for
+            // last delivered segment.
+            ackNow = !bufferedRanges.isEmpty(); // It fills a gap.
+            if (readBuffer.remaining() >= length) {
+                readBuffer.put(buf, offset, length);
+                nextSeqNum += length;
+            } else {
+                // No room, so let the sender know the window is closed.
+                bufferSegment(seqNum, buf, offset, length);
+                ackNow = true;
+            }
             unloadSegmentBuffer();
+            unACKedSegments++;
 
             System.out.print(".:");
         } else if (nextSeqNum < seqNum) {
             // Segment received is out-of-order.
             // Queue up the segment.
-            bufferSegment(seqNum, payload);
+            bufferSegment(seqNum, buf, offset, length);
+            ackNow = true;
 
             System.out.print(".?");
         } else {
-            // Segment received is old, ignore.
+            // Segment received is old, ignore. Its ACK may have been lost,
+            // so it is ACKed along with the next data.
+            ackNow = false;
             System.out.print("!?");
         }
 
-        // Send an ACK no matter what.
+        if (ackNow || unACKedSegments >= 2 || sock.getAckDelay() == 0) {
+            sendACK();
+            if (TCPManager.LOG) sock.getManager().log("Sent ACK for data (" + length + ") with seqNum " + prevSeqNum + " and ackSeqNum " + nextSeqNum);
+        } else {
+            delayACK();
+        }
+    }
+
+    public void ackTimedOut() {
+        if (sock.isClosed()) return;
+
         sendACK();
-        sock.getManager().log("Sent ACK for data (" + payload.length + ") with seqNum " + prevSeqNum + " and ackSeqNum " + nextSeqNum);
+        if (TCPManager.LOG) sock.getManager().log("Sent delayed ACK with ackSeqNum " + nextSeqNum);
     }
 
+    // Number of bytes that can be read.
+    public int getAvailable() { return readBuffer.position(); }
+
     public int read(byte[] buf, int pos, int len) {
         readBuffer.flip();
         int bytesRead = Math.min(readBuffer.remaining(), len);
         readBuffer.get(buf, pos, bytesRead);
         readBuffer.compact();
+        if (sock.isClosed()) return bytesRead;
+
+        // Deliver the segments that were waiting for room. If the window
+        // the sender knows of is too small for a segment, tell it that the
+        // window has opened, as it does not send again until it knows.
+        int prevSeqNum = nextSeqNum;
+        unloadSegmentBuffer();
+        int mss = sock.getMaxSegmentSize();
+        if (nextSeqNum != prevSeqNum ||
+            (advertisedWindow < mss && getReceiveWindow() >= mss)) {
+            sendACK();
+        }
 
         return bytesRead;
     }
 
     private int getReceiveWindow() { return readBuffer.remaining(); }
 
+    // Starts the delayed ACK timer, unless it is already running.
+    private void delayACK() {
+        if (ackTimer != null && ackTimer.isPending()) return;
+
+        if (ackTimer != null) {
+            ackTimer.reschedule(sock.getAckDelay());
+        } else {
+            ackTimer = sock.getManager().addTimer(sock.getAckDelay(), this::ackTimedOut);
+        }
+    }
+    private void cancelDelayedACK() {
+        if (ackTimer != null) ackTimer.cancel();
+        unACKedSegments = 0;
+    }
+
+    /**
+     * Gets the SACK blocks reporting the data held in the segment buffer.
+     * The block holding the latest segment buffered comes first, as the
+     * sender may have missed the ACKs reporting it, then the lowest blocks.
+     *
+     * @return null if nothing is buffered.
+     */
+    private int[] getSackBlocks() {
+        if (bufferedRanges.isEmpty()) return null;
+
+        int numBlocks = Math.min(bufferedRanges.size(), Transport.MAX_SACK_BLOCKS);
+        int[] blocks = new int[2 * numBlocks];
+        int latest = Math.max(0, bufferedRanges.indexOf(lastBufferedSeqNum));
+        blocks[0] = bufferedRanges.getStart(latest);
+        blocks[1] = bufferedRanges.getEnd(latest);
+        for (int i = 0, block = 1; block < numBlocks; i++) {
+            if (i == latest) continue;
+            blocks[2 * block] = bufferedRanges.getStart(i);
+            blocks[2 * block + 1] = bufferedRanges.getEnd(i);
+            block++;
+        }
+        return blocks;
+    }
+
     // Segment buffer functions.
-    private void bufferSegment(int seqNum, byte[] payload) {
-        segmentBuffer.add(seqNum, payload);
+    private void bufferSegment(int seqNum, byte[] buf, int offset, int length) {
+        segmentBuffer.add(seqNum, Arrays.copyOfRange(buf, offset, offset + length));
+        bufferedRanges.add(seqNum, seqNum + length);
+        lastBufferedSeqNum = seqNum;
     }
     /**
-     * Delivers consecutive segments in segmentBuffer into the readbuffer.
-     * Only call this if the first segment has been ACK'd.
+     * Delivers the buffered segments that continue from nextSeqNum into the
+     * readbuffer, dropping those that have already been delivered.
      */
     private void unloadSegmentBuffer() {
-        int byteCount = 0;
-
-        int firstSeqNum = segmentBuffer.peekSeqNum();
-        if (firstSeqNum == -1) return;
-
-        Segment lastSegment = new Segment(firstSeqNum, TCPSock.dummy);
-
         while (true) {
             Segment segment = segmentBuffer.peek();
             if (segment == null) break;
 
-            // If segment is next to the last segment, write the segment's
-            // payload to the readbuffer and remove the segment.
-            if (segment.isNextTo(lastSegment)) {
-                if (readBuffer.remaining() < segment.getPayloadSize()) break;
+            if (segment.getSeqNum() + segment.getPayloadSize() <= nextSeqNum) {
+                // Duplicate of data already delivered.
+                segmentBuffer.poll();
+                continue;
+            }
 
-                readBuffer.put(segment.getPayload());
-                byteCount += segment.getPayloadSize();
-                lastSegment = segmentBuffer.poll();
-            } else break;
+            // If segment is next, write the segment's payload to the
+            // readbuffer, remove the segment and increment the seqNum.
+            if (segment.getSeqNum() != nextSeqNum) break;
+            if (readBuffer.remaining() < segment.getPayloadSize()) break;
+
+            readBuffer.put(segment.getPayload());
+            nextSeqNum += segment.getPayloadSize();
+            segmentBuffer.poll();
         }
+        bufferedRanges.removeBelow(nextSeqNum);
+    }
 
-        // Increment the seqNum by the amount unloaded.
-        nextSeqNum += byteCount;
+    // ByteBuffer is not Serializable, so save the read buffer's contents and position.
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(readBuffer.position());
+        out.writeInt(readBuffer.limit());
+        out.write(readBuffer.array(), 0, readBuffer.capacity());
+    }
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int position = in.readInt();
+        int limit = in.readInt();
+        readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        in.readFully(readBuffer.array());
+        readBuffer.limit(limit);
+        readBuffer.position(position);
     }
-}
\ No newline at end of file
+}
@@ -10,14 +10,15 @@
  */
 
 /**
- * <p> A transfer client using Fishnet socket API </p>
+ * <p> A transfer client using Fishnet socket API. It runs on the readiness
+ * events of its socket </p>
  */
-public class TransferClient extends FishThread {
+public class TransferClient implements TCPSockListener {
+    private Manager manager;
+    private Node node;
     private TCPSock sock;
-    private long interval;
     private byte[] buf;
 
-    public static final long DEFAULT_CLIENT_INTERVAL = 1000;
     public static final int DEFAULT_BUFFER_SZ = 65536;
 
     // number of bytes to send
@@ -28,58 +29,67 @@ public class TransferClient extends FishThread {
     private int pos;
 
     public TransferClient(Manager manager, Node node, TCPSock sock, int amount,
-                          long interval, int sz) {
-        super(manager, node);
+                          int sz) {
+        this.manager = manager;
+        this.node = node;
         this.sock = sock;
-        this.interval = interval;
         this.buf = new byte[sz];
         this.amount = amount;
         this.startTime = 0;
         this.finishTime = 0;
         this.pos = 0;
 
-        this.setInterval(this.interval);
+        // generate the data, which is the same for every pass over buf
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (byte) i;
+        }
     }
 
     public TransferClient(Manager manager, Node node, TCPSock sock, int amount) {
-        this(manager, node, sock, amount,
-             DEFAULT_CLIENT_INTERVAL,
-             DEFAULT_BUFFER_SZ);
+        this(manager, node, sock, amount, DEFAULT_BUFFER_SZ);
     }
 
-    public void execute() {
-        if (sock.isConnectionPending()) {
-            //node.logOutput("connecting...");
-            return;
-        } else if (sock.isConnected()) {
-
-            if (startTime == 0) {
-                // record starting time
-                startTime = manager.now();
-                node.logOutput("time = " + startTime + " msec");
-                node.logOutput("started");
-                node.logOutput("bytes to send = " + amount);
-            }
+    /**
+     * Start the transfer once the socket, which must be connecting, is
+     * connected
+     */
+    public void start() {
+        sock.setListener(this);
+    }
 
-            if (amount == 0) {
-                // sending completed, initiate closure of connection
-                node.logOutput("time = " + manager.now());
-                node.logOutput("sending completed");
-                node.logOutput("closing connection...");
-                sock.close();
-                return;
-            }
+    public void onConnected(TCPSock sock) {
+        // record starting time
+        startTime = manager.now();
+        node.logOutput("time = " + startTime + " msec");
+        node.logOutput("started");
+        node.logOutput("bytes to send = " + amount);
 
-            //node.logOutput("sending...");
-            int index = pos % buf.length;
+        send();
+    }
 
-            if (index == 0) {
-                // generate new data
-                for (int i = 0; i < buf.length; i++) {
-                    buf[i] = (byte) i;
-                }
-            }
+    public void onWritable(TCPSock sock) {
+        send();
+    }
+
+    public void onClosed(TCPSock sock) {
+        finishTime = manager.now();
+        node.logOutput("time = " + manager.now() + " msec");
+        node.logOutput("connection closed");
+        node.logOutput("total bytes sent = " + pos);
+        node.logOutput("time elapsed = " +
+                       (finishTime - startTime) + " msec");
+        node.logOutput("Bps = " + pos * 1000.0 / (finishTime - startTime));
+        // release the socket
+        sock.release();
+    }
+
+    // Writes until the send buffer is full, then closes the connection once
+    // everything has been written.
+    private void send() {
+        if (!sock.isConnected()) return;
 
+        while (amount > 0) {
+            int index = pos % buf.length;
             int len = Math.min(buf.length - index, amount);
             int count = sock.write(buf, index, len);
 
@@ -90,34 +100,22 @@ public class TransferClient extends FishThread {
                 node.logError("position = " + pos);
                 node.logError("releasing connection...");
                 sock.release();
-                this.stop();
+                sock.setListener(null);
+                return;
+            }
+            if (count == 0) {
+                // send buffer full, wait until it is writable
                 return;
             }
 
             pos += count;
             amount -= count;
-
-            //node.logOutput("time = " + manager.now());
-            //node.logOutput("bytes sent = " + count);
-            return;
-        } else if (sock.isClosurePending()) {
-            //node.logOutput("closing connection...");
-            return;
-        } else if (sock.isClosed()) {
-            finishTime = manager.now();
-            node.logOutput("time = " + manager.now() + " msec");
-            node.logOutput("connection closed");
-            node.logOutput("total bytes sent = " + pos);
-            node.logOutput("time elapsed = " +
-                           (finishTime - startTime) + " msec");
-            node.logOutput("Bps = " + pos * 1000.0 / (finishTime - startTime));
-            // release the socket
-            sock.release();
-            this.stop();
-            return;
         }
 
-        node.logError("shouldn't reach here");
-        System.exit(1);
+        // sending completed, initiate closure of connection
+        node.logOutput("time = " + manager.now());
+        node.logOutput("sending completed");
+        node.logOutput("closing connection...");
+        sock.close();
     }
 }
@@ -10,17 +10,16 @@
  */
 
 /**
- * <p> A transfer server using Fishnet socket API </p>
+ * <p> A transfer server using Fishnet socket API. It and its workers run on
+ * the readiness events of their sockets </p>
  */
-public class TransferServer extends FishThread {
+public class TransferServer implements TCPSockListener {
+    private Manager manager;
+    private Node node;
     private TCPSock serverSock;
-    private long serverInterval;
-    private long workerInterval;
     private int sz;
 
     // default settings
-    public static final long DEFAULT_SERVER_INTERVAL = 1000;
-    public static final long DEFAULT_WORKER_INTERVAL = 1000;
     public static final int DEFAULT_BUFFER_SZ = 65536;
 
     /**
@@ -29,19 +28,14 @@ public class TransferServer extends FishThread {
      * @param manager Manager The Fishnet manager
      * @param node Node The node that is creating this server
      * @param serverSock TCPSock The server socket for this server
-     * @param serverInterval long The execution interval of this server
-     * @param workerInterval long The execution interval of accepted connections
      * @param sz int The buffer size of the worker
      */
     public TransferServer(Manager manager, Node node, TCPSock serverSock,
-                          long serverInterval, long workerInterval, int sz) {
-        super(manager, node);
+                          int sz) {
+        this.manager = manager;
+        this.node = node;
         this.serverSock = serverSock;
-        this.serverInterval = serverInterval;
-        this.workerInterval = workerInterval;
         this.sz = sz;
-
-        this.setInterval(this.serverInterval);
     }
 
     /**
@@ -52,83 +46,86 @@ public class TransferServer extends FishThread {
      * @param serverSock TCPSock The server socket for this server
      */
     public TransferServer(Manager manager, Node node, TCPSock serverSock) {
-        this(manager, node, serverSock,
-             DEFAULT_SERVER_INTERVAL,
-             DEFAULT_WORKER_INTERVAL,
-             DEFAULT_BUFFER_SZ);
+        this(manager, node, serverSock, DEFAULT_BUFFER_SZ);
     }
 
-    public void execute() {
-        if (!serverSock.isClosed()) {
-            // try to accept an established connection
-            TCPSock connSock = serverSock.accept();
-
-            if (connSock == null) return;
+    /**
+     * Start accepting connections on the server socket, which must be
+     * listening
+     */
+    public void start() {
+        serverSock.setListener(this);
+    }
 
-            // start a worker thread to serve the new connection
+    public void onAcceptPending(TCPSock sock) {
+        // accept the established connections
+        TCPSock connSock;
+        while ((connSock = serverSock.accept()) != null) {
+            // start a worker to serve the new connection
             node.logOutput("time = " + manager.now() + " msec");
             node.logOutput("connection accepted");
-            TransferWorker worker = new
-                TransferWorker(manager, node, connSock, workerInterval, sz);
+            TransferWorker worker = new TransferWorker(connSock);
             worker.start();
-        } else {
-            // server socket closed, shutdown
-            node.logOutput("time = " + manager.now() + " msec");
-            node.logOutput("server shutdown");
-            this.stop();
         }
     }
 
-    private class TransferWorker extends FishThread {
+    private class TransferWorker implements TCPSockListener {
         private TCPSock sock;
-        private long interval;
         private byte[] buf;
         private int pos;
 
-        public TransferWorker(Manager manager, Node node, TCPSock sock,
-                              long interval, int sz) {
-            super(manager, node);
+        public TransferWorker(TCPSock sock) {
             this.sock = sock;
-            this.interval = interval;
             this.buf = new byte[sz];
             this.pos = 0;
+        }
 
-            this.setInterval(interval);
+        public void start() {
+            sock.setListener(this);
+            // data may have arrived before the connection was accepted
+            receive();
         }
 
-        public void execute() {
-            if (!sock.isClosed()) {
-                //node.logOutput("receiving...");
+        public void onReadable(TCPSock sock) {
+            receive();
+        }
+
+        public void onClosed(TCPSock sock) {
+            // read what is still buffered
+            if (!receive()) return;
+
+            node.logOutput("time = " + manager.now() + " msec");
+            node.logOutput("connection closed");
+            node.logOutput("total bytes received = " + pos);
+            sock.release();
+        }
+
+        // Reads and verifies all data available.
+        // @return False if the data is corrupted
+        private boolean receive() {
+            while (true) {
                 int index = pos % buf.length;
 
                 int len = buf.length - index;
                 int count = sock.read(buf, index, len);
 
-                if (count == -1) {
-                    // on error, release the socket immediately
-                    node.logError("time = " + manager.now() + " msec");
-                    node.logError("receiving aborted");
-                    node.logError("position = " + pos);
-                    node.logError("releasing connection...");
-                    sock.release();
-                    this.stop();
-                    return;
+                if (count <= 0) {
+                    // nothing more to read, or the connection has closed
+                    return true;
                 }
 
-                if (count > 0) {
-                    //node.logOutput("verifying data...");
-                    for (int i = index; i < index + count; i++) {
-                        // node.logOutput("Byte check (" + count + "): " + i + " gives " + (int)buf[i]);
-                        if (buf[i] != (byte) i) {
-                            // data corrupted
-                            node.logError("time = " + manager.now() + " msec");
-                            node.logError("data corruption detected");
-                            node.logError("position = " + pos);
-                            node.logError("releasing connection...");
-                            sock.release();
-                            this.stop();
-                            return;
-                        }
+                //node.logOutput("verifying data...");
+                for (int i = index; i < index + count; i++) {
+                    // node.logOutput("Byte check (" + count + "): " + i + " gives " + (int)buf[i]);
+                    if (buf[i] != (byte) i) {
+                        // data corrupted
+                        node.logError("time = " + manager.now() + " msec");
+                        node.logError("data corruption detected");
+                        node.logError("position = " + pos);
+                        node.logError("releasing connection...");
+                        sock.release();
+                        sock.setListener(null);
+                        return false;
                     }
                 }
 
@@ -136,13 +133,7 @@ public class TransferServer extends FishThread {
 
                 //node.logOutput("time = " + manager.now() + " msec");
                 //node.logOutput("bytes received = " + count);
-                return;
             }
-
-            node.logOutput("time = " + manager.now() + " msec");
-            node.logOutput("connection closed");
-            node.logOutput("total bytes received = " + pos);
-            this.stop();
         }
     }
 }
@@ -4,10 +4,10 @@
 # edge 0 1 lossRate 0.2 delay 200 bw 10000 bt 1000 (Bps = ~150 - ~250)
 edge 0 1 lossRate 0.2 delay 200 bw 10000 bt 1000
 time + 5
-# server port backlog [servint workint sz]
+# server port backlog [servint workint sz [ackdelay]] (servint, workint ignored)
 0 server 21 2
 time + 5
-# transfer dest port localPort amount [interval sz]
+# transfer dest port localPort amount [interval sz [mss [cc]]] (interval ignored)
 1 transfer 0 21 40 1000000
 time + 10000000
 time + 10